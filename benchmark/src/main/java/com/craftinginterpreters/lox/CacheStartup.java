@@ -0,0 +1,84 @@
+package com.craftinginterpreters.lox;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// Time from a script file to its resolved statements, as Lox's --cache
+// gets them:
+//   cold: no entry yet, so the file is scanned, parsed and resolved, and
+//         the entry written
+//   warm: the entry is read instead
+// Each invocation starts with a new interpreter, as a run of Lox does.
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CacheStartup {
+    @Param({"cold", "warm"})
+    public String cache;
+
+    // Number of generated declarations.
+    @Param({"10000", "100000"})
+    public int size;
+
+    private Path directory;
+    private Path file;
+    private AstCache astCache;
+    private Path entry;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("lox-cache");
+        file = directory.resolve("synthetic.lox");
+        Files.write(file, Synthetic.generate(size)
+                .getBytes(StandardCharsets.UTF_8));
+        astCache = new AstCache(directory);
+        entry = astCache.entry(file);
+        if(cache.equals("warm")) load();
+    }
+
+    @Setup(Level.Invocation)
+    public void clear() throws IOException {
+        if(cache.equals("cold")) Files.deleteIfExists(entry);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(entry);
+        Files.deleteIfExists(file);
+        Files.deleteIfExists(directory);
+    }
+
+    @Benchmark
+    public List<Stmt> load() throws IOException {
+        ErrorReporter errors = new ErrorReporter();
+        Interpreter interpreter = new Interpreter(errors);
+
+        Path entry = astCache.entry(file);
+        List<Stmt> statements = astCache.read(entry, interpreter);
+        if(statements != null) return statements;
+
+        try(Reader reader = new InputStreamReader(
+                Files.newInputStream(file), StandardCharsets.UTF_8)) {
+            statements = new Parser(new Scanner(reader, errors), errors)
+                    .parse();
+        }
+        new Resolver(interpreter).resolve(statements);
+        if(errors.hadError) {
+            throw new IllegalStateException("Error in generated source.");
+        }
+
+        astCache.write(entry, statements, interpreter);
+        return statements;
+    }
+}
@@ -0,0 +1,90 @@
+package com.craftinginterpreters.lox;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// Each stage of running a script from test/benchmark, measured on its own.
+// The input of a stage is prepared once per trial by running the stages
+// before it.
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class Pipeline {
+    @Param({"binary_trees", "equality", "fib", "instantiation",
+            "invocation", "method_call", "properties", "string_equality",
+            "trees", "zoo", "zoo_batch"})
+    public String script;
+
+    private String source;
+    private List<Token> tokens;
+    private List<Stmt> statements;
+    private final ErrorReporter errors = new ErrorReporter();
+    // Globals are resolved to slots in this interpreter's table, so the
+    // same interpreter has to run the statements.
+    private Interpreter interpreter;
+    private PrintStream out;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        String root = System.getProperty("lox.root", "..");
+        source = new String(Files.readAllBytes(
+                Paths.get(root, "test", "benchmark", script + ".lox")),
+                StandardCharsets.UTF_8);
+
+        tokens = new Scanner(source, errors).scanTokens();
+        statements = new Parser(tokens, errors).parse();
+        interpreter = new Interpreter(errors);
+        new Resolver(interpreter).resolve(statements);
+        if(errors.hadError) {
+            throw new IllegalStateException("Error in " + script + ".");
+        }
+
+        // The scripts print their results and timings.
+        out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Output.stdout.flush();
+        System.setOut(out);
+    }
+
+    @Benchmark
+    public List<Token> scan() {
+        return new Scanner(source, errors).scanTokens();
+    }
+
+    @Benchmark
+    public List<Stmt> parse() {
+        return new Parser(tokens, errors).parse();
+    }
+
+    @Benchmark
+    public List<Stmt> resolve() {
+        // Resolving only writes the same depths and slots again, so the
+        // statements can be resolved once per invocation.
+        new Resolver(interpreter).resolve(statements);
+        return statements;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 2)
+    @Measurement(iterations = 5)
+    public Interpreter interpret() {
+        interpreter.interpret(statements);
+        return interpreter;
+    }
+}
@@ -0,0 +1,106 @@
+package com.craftinginterpreters.lox;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// Time from opening a large generated script to having its first
+// statement parsed, for each way of loading a source:
+//   string: the whole file read into a String first
+//   reader: the Scanner reading the file as it goes
+//   mapped: the Scanner working on the mapped file in place
+// Every mode runs in a JVM of its own, which prints its peak resident set
+// size once the trial is done.
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SourceLoading {
+    @Param({"string", "reader", "mapped"})
+    public String mode;
+
+    @Param({"100"})
+    public int megabytes;
+
+    private Path file;
+    private final ErrorReporter errors = new ErrorReporter();
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        file = Paths.get(System.getProperty("java.io.tmpdir"),
+                         "lox-" + megabytes + "mb.lox");
+        long size = megabytes * 1024L * 1024L;
+        if(Files.exists(file) && Files.size(file) >= size) return;
+
+        String chunk = Synthetic.generate(1000);
+        try(BufferedWriter out = Files.newBufferedWriter(file,
+                StandardCharsets.UTF_8)) {
+            for(long written = 0; written < size;
+                    written += chunk.length()) {
+                out.write(chunk);
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        for(String line : Files.readAllLines(
+                Paths.get("/proc/self/status"))) {
+            if(line.startsWith("VmHWM:")) {
+                System.out.println("\n" + mode + " peak RSS: " +
+                                   line.substring(6).trim());
+            }
+        }
+    }
+
+    @Benchmark
+    public List<Stmt> firstStatement() throws IOException {
+        switch(mode) {
+            case "string":
+                String source = new String(Files.readAllBytes(file),
+                                           StandardCharsets.UTF_8);
+                return parseFirst(new Scanner(source, errors));
+            case "reader":
+                try(Reader reader = new InputStreamReader(
+                        Files.newInputStream(file), StandardCharsets.UTF_8)) {
+                    return parseFirst(new Scanner(reader, errors));
+                }
+            default:
+                return parseFirst(new Scanner(Lox.map(file), errors));
+        }
+    }
+
+    // Parses the tokens up to the end of the first top-level statement,
+    // which is the last semicolon or closing brace outside any braces.
+    private List<Stmt> parseFirst(Scanner scanner) {
+        return new Parser(new TokenStream() {
+            private int depth = 0;
+            private Token last = null;
+
+            @Override
+            public Token next() {
+                if(last != null && depth == 0 &&
+                        (last.type == TokenType.SEMICOLON ||
+                         last.type == TokenType.RIGHT_BRACE)) {
+                    return new Token(TokenType.EOF, "", null, last.line);
+                }
+
+                last = scanner.next();
+                if(last.type == TokenType.LEFT_BRACE) depth++;
+                if(last.type == TokenType.RIGHT_BRACE) depth--;
+                return last;
+            }
+        }, errors).parse();
+    }
+}
@@ -0,0 +1,100 @@
+package com.craftinginterpreters.lox;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// The front end stages on generated programs much larger than the
+// scripts in test/benchmark, to see how they scale with input size.
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class Synthetic {
+    // Number of generated declarations.
+    @Param({"1000", "10000", "100000"})
+    public int size;
+
+    private String source;
+    private List<Token> tokens;
+    private List<Stmt> statements;
+    private final ErrorReporter errors = new ErrorReporter();
+    // Globals are resolved to slots in this interpreter's table, so the
+    // same interpreter has to run the statements.
+    private Interpreter interpreter;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        source = generate(size);
+        tokens = new Scanner(source, errors).scanTokens();
+        statements = new Parser(tokens, errors).parse();
+        interpreter = new Interpreter(errors);
+        new Resolver(interpreter).resolve(statements);
+        if(errors.hadError) {
+            throw new IllegalStateException("Error in generated source.");
+        }
+    }
+
+    @Benchmark
+    public List<Token> scan() {
+        return new Scanner(source, errors).scanTokens();
+    }
+
+    @Benchmark
+    public List<Stmt> parse() {
+        return new Parser(tokens, errors).parse();
+    }
+
+    @Benchmark
+    public List<Stmt> resolve() {
+        new Resolver(interpreter).resolve(statements);
+        return statements;
+    }
+
+    @Benchmark
+    public Interpreter interpret() {
+        interpreter.interpret(statements);
+        return interpreter;
+    }
+
+    // A program of size declarations cycling through functions, classes,
+    // globals and loops, so every kind of token and node shows up. Running
+    // it only defines things and does a little arithmetic.
+    static String generate(int size) {
+        StringBuilder source = new StringBuilder();
+        for(int i = 0; i < size; ++i) {
+            switch(i % 4) {
+                case 0:
+                    source.append("fun f").append(i).append("(a, b) {\n")
+                          .append("  var c = a * b - (a / 2);\n")
+                          .append("  if(c >= 10 and a != b) return c;\n")
+                          .append("  return \"small\" + \"value\";\n")
+                          .append("}\n");
+                    break;
+                case 1:
+                    source.append("class C").append(i).append(" {\n")
+                          .append("  init(x) { this.x = x; }\n")
+                          .append("  get() { return this.x + 1; }\n")
+                          .append("}\n");
+                    break;
+                case 2:
+                    source.append("var v").append(i).append(" = ")
+                          .append(i).append(" * 3.5 + -1;\n");
+                    break;
+                default:
+                    source.append("{\n")
+                          .append("  var sum = 0;\n")
+                          .append("  for(var j = 0; j < 3; j = j + 1) {\n")
+                          .append("    sum = sum + j; // comment\n")
+                          .append("  }\n")
+                          .append("}\n");
+                    break;
+            }
+        }
+
+        return source.toString();
+    }
+}
@@ -0,0 +1,825 @@
+package com.craftinginterpreters.lox;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+// Resolved programs saved in a directory, so running a script again can
+// skip scanning, parsing and resolving it. An entry is named by a hash of
+// the source and of VERSION. It holds:
+//   every string in the tree, once
+//   the statements, with what the Resolver wrote on their nodes
+//   the global names in slot order, and the top-level frame size
+//   a CRC-32 of everything before it, as the last four bytes
+// Numbers are variable-length, strings are indexes into the table, and a
+// token's line is the difference from the line of the token before it.
+// Reading an entry does for an Interpreter what resolving the program
+// would have. An entry that can't be read is a miss.
+//
+// An entry's modification time is when it was last written or read. Once
+// there are more than MAX_ENTRIES, writing one deletes the least recently
+// used, so edited scripts don't leave entries behind forever.
+final class AstCache {
+    // Bump when the tree's fields, the Resolver's results or this format
+    // change, so older entries are never read.
+    private static final int VERSION = 4;
+    private static final int MAGIC = 0x4c4f5843; // "LOXC"
+    private static final int MAX_ENTRIES = 256;
+    private static final String SUFFIX = ".loxc";
+
+    private final Path directory;
+
+    AstCache(Path directory) {
+        this.directory = directory;
+    }
+
+    // Where the resolved program for this source file goes.
+    Path entry(Path source) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch(NoSuchAlgorithmException error) {
+            throw new IllegalStateException(error);
+        }
+
+        digest.update(ByteBuffer.allocate(4).putInt(VERSION).flip());
+        digest.update(Lox.map(source));
+
+        StringBuilder name = new StringBuilder();
+        byte[] hash = digest.digest();
+        for(int i = 0; i < 16; ++i) {
+            name.append(String.format("%02x", hash[i]));
+        }
+        return directory.resolve(name.append(SUFFIX).toString());
+    }
+
+    // The program saved at entry, resolved for interpreter, or null.
+    List<Stmt> read(Path entry, Interpreter interpreter) {
+        if(!Files.exists(entry)) return null;
+
+        try {
+            ByteBuffer bytes;
+            try(FileChannel channel = FileChannel.open(entry)) {
+                bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                                    channel.size());
+            }
+            if(!intact(bytes)) return null;
+            List<Stmt> statements = new Reader(bytes).program(interpreter);
+            if(statements != null) used(entry);
+            return statements;
+        } catch(IOException | RuntimeException error) {
+            return null;
+        }
+    }
+
+    // Marks entry as just used, if the cache can be written.
+    private static void used(Path entry) {
+        try {
+            Files.setLastModifiedTime(entry,
+                    FileTime.fromMillis(System.currentTimeMillis()));
+        } catch(IOException error) {
+            // It's pruned a little sooner.
+        }
+    }
+
+    // Whether bytes end with the checksum of what comes before, which is
+    // then all that's left of them to read.
+    private static boolean intact(ByteBuffer bytes) {
+        int length = bytes.limit() - 4;
+        if(length < 0) return false;
+
+        CRC32 crc = new CRC32();
+        crc.update(bytes.duplicate().limit(length));
+        if((int)crc.getValue() != bytes.getInt(length)) return false;
+
+        bytes.limit(length);
+        return true;
+    }
+
+    // Saves a program that resolved without errors. The cache only saves
+    // time, so an entry that can't be written is left out.
+    void write(Path entry, List<Stmt> statements, Interpreter interpreter) {
+        byte[] bytes = new Writer().program(statements, interpreter);
+        Path partial = null;
+        try {
+            Files.createDirectories(directory);
+            // Written whole before it's visible, in case another process
+            // reads it meanwhile.
+            partial = Files.createTempFile(directory, null, ".part");
+            Files.write(partial, bytes);
+            Files.move(partial, entry, StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+            partial = null;
+            prune();
+        } catch(IOException error) {
+            // No entry; the next run resolves the program again.
+        } finally {
+            if(partial != null) {
+                try {
+                    Files.deleteIfExists(partial);
+                } catch(IOException error) {
+                    // Left for the OS's temp cleaning, if any.
+                }
+            }
+        }
+    }
+
+    // Deletes the least recently used entries past MAX_ENTRIES. Another
+    // process may be pruning too, so an entry already gone is fine.
+    private void prune() throws IOException {
+        List<Path> entries = new ArrayList<>();
+        try(DirectoryStream<Path> files =
+                Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for(Path file : files) entries.add(file);
+        }
+        if(entries.size() <= MAX_ENTRIES) return;
+
+        Map<Path, FileTime> used = new HashMap<>();
+        for(Path file : entries) {
+            try {
+                used.put(file, Files.getLastModifiedTime(file));
+            } catch(IOException error) {
+                used.put(file, FileTime.fromMillis(0));
+            }
+        }
+        entries.sort(Comparator.comparing(used::get));
+        for(Path file : entries.subList(0, entries.size() - MAX_ENTRIES)) {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    // Tags of the statements and expressions, in Stmt's and Expr's
+    // order. 0 is null.
+    private static final int BLOCK = 1, CLASS = 2, EXPRESSION = 3,
+            FOR = 4, FUNCTION = 5, IF = 6, PRINT = 7, RETURN = 8, VAR = 9,
+            WHILE = 10;
+    private static final int ASSIGN = 1, BINARY = 2, CALL = 3, GET = 4,
+            FUNCTION_EXPR = 5, GROUPING = 6, LITERAL = 7, LOGICAL = 8,
+            SET = 9, SUPER = 10, THIS = 11, TERNARY = 12, UNARY = 13,
+            VARIABLE = 14;
+
+    // Tags of literal values. Numbers that are ints are written as one.
+    private static final int NIL = 0, FALSE = 1, TRUE = 2, NUMBER = 3,
+            STRING = 4, INTEGER = 5;
+
+    private static final long NEGATIVE_ZERO =
+            Double.doubleToRawLongBits(-0.0);
+    private static final TokenType[] tokenTypes = TokenType.values();
+    private static final Resolver.Access[] accesses =
+            Resolver.Access.values();
+
+    private static class Writer
+            implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+        private final Map<String, Integer> strings = new HashMap<>();
+        private final List<String> table = new ArrayList<>();
+        private byte[] tree = new byte[1024];
+        private int length = 0;
+        private int line = 0;
+
+        byte[] program(List<Stmt> statements, Interpreter interpreter) {
+            statements(statements);
+
+            String[] globals = interpreter.globals.names();
+            number(globals.length);
+            for(String name : globals) string(name);
+            number(interpreter.scriptFrameSize);
+
+            // The string table goes first, so the tree can be read in one
+            // pass.
+            byte[] body = tree;
+            int bodyLength = length;
+            tree = new byte[1024];
+            length = 0;
+
+            number(MAGIC);
+            number(VERSION);
+            number(table.size());
+            for(String string : table) {
+                byte[] utf8 = string.getBytes(StandardCharsets.UTF_8);
+                number(utf8.length);
+                bytes(utf8, utf8.length);
+            }
+            bytes(body, bodyLength);
+
+            byte[] result = new byte[length + 4];
+            System.arraycopy(tree, 0, result, 0, length);
+            CRC32 crc = new CRC32();
+            crc.update(result, 0, length);
+            ByteBuffer.wrap(result).putInt(length, (int)crc.getValue());
+            return result;
+        }
+
+        private void bytes(byte[] bytes, int count) {
+            ensure(count);
+            System.arraycopy(bytes, 0, tree, length, count);
+            length += count;
+        }
+
+        private void ensure(int count) {
+            if(length + count <= tree.length) return;
+
+            byte[] grown = new byte[Math.max(tree.length * 2,
+                                             length + count)];
+            System.arraycopy(tree, 0, grown, 0, length);
+            tree = grown;
+        }
+
+        // Zigzag, so the -1 of unset slots is one byte too.
+        private void number(int value) {
+            int bits = (value << 1) ^ (value >> 31);
+            ensure(5);
+            while((bits & ~0x7f) != 0) {
+                tree[length++] = (byte)((bits & 0x7f) | 0x80);
+                bits >>>= 7;
+            }
+            tree[length++] = (byte)bits;
+        }
+
+        private void flag(boolean value) {
+            number(value ? 1 : 0);
+        }
+
+        private void string(String string) {
+            Integer index = strings.get(string);
+            if(index == null) {
+                index = table.size();
+                strings.put(string, index);
+                table.add(string);
+            }
+            number(index);
+        }
+
+        private void numbers(int[] values) {
+            // 0 for null, otherwise one more than the length.
+            if(values == null) {
+                number(0);
+                return;
+            }
+
+            number(values.length + 1);
+            for(int value : values) number(value);
+        }
+
+        private void value(Object value) {
+            if(value == null) {
+                number(NIL);
+            } else if(value instanceof Boolean) {
+                number((Boolean)value ? TRUE : FALSE);
+            } else if(value instanceof Double) {
+                double number = (Double)value;
+                if(number == (int)number &&
+                        Double.doubleToRawLongBits(number) != NEGATIVE_ZERO) {
+                    number(INTEGER);
+                    number((int)number);
+                    return;
+                }
+
+                number(NUMBER);
+                long bits = Double.doubleToRawLongBits((Double)value);
+                number((int)(bits >>> 32));
+                number((int)bits);
+            } else {
+                number(STRING);
+                string((String)value);
+            }
+        }
+
+        private void token(Token token) {
+            if(token == null) {
+                number(0);
+                return;
+            }
+
+            number(token.type.ordinal() + 1);
+            string(token.lexeme);
+            value(token.literal);
+            number(token.line - line);
+            line = token.line;
+        }
+
+        private void tokens(List<Token> tokens) {
+            number(tokens.size());
+            for(Token token : tokens) token(token);
+        }
+
+        private void expr(Expr expr) {
+            if(expr == null) {
+                number(0);
+            } else {
+                expr.accept(this);
+            }
+        }
+
+        private void exprs(List<? extends Expr> exprs) {
+            number(exprs.size());
+            for(Expr expr : exprs) expr(expr);
+        }
+
+        private void stmt(Stmt stmt) {
+            if(stmt == null) {
+                number(0);
+            } else {
+                stmt.accept(this);
+                number(stmt.line);
+            }
+        }
+
+        private void statements(List<Stmt> statements) {
+            number(statements.size());
+            for(Stmt statement : statements) stmt(statement);
+        }
+
+        private void variable(Resolver.Access access, int slot) {
+            number(access.ordinal());
+            number(slot);
+        }
+
+        private void function(Token name, List<Token> params,
+                              List<Stmt> body, Resolver.Access access,
+                              int slot, boolean captured, int frameSize,
+                              int[] upvalues, int[] capturedParams) {
+            token(name);
+            tokens(params);
+            statements(body);
+            variable(access, slot);
+            flag(captured);
+            number(frameSize);
+            numbers(upvalues);
+            numbers(capturedParams);
+        }
+
+        @Override
+        public Void visitAssignExpr(Expr.Assign expr) {
+            number(ASSIGN);
+            token(expr.name);
+            expr(expr.value);
+            variable(expr.access, expr.slot);
+            return null;
+        }
+
+        @Override
+        public Void visitBinaryExpr(Expr.Binary expr) {
+            number(BINARY);
+            expr(expr.left);
+            token(expr.operator);
+            expr(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitCallExpr(Expr.Call expr) {
+            number(CALL);
+            expr(expr.callee);
+            token(expr.paren);
+            exprs(expr.arguments);
+            return null;
+        }
+
+        @Override
+        public Void visitGetExpr(Expr.Get expr) {
+            number(GET);
+            expr(expr.object);
+            token(expr.name);
+            return null;
+        }
+
+        @Override
+        public Void visitFunctionExpr(Expr.Function expr) {
+            number(FUNCTION_EXPR);
+            function(expr.name, expr.params, expr.body, expr.access,
+                     expr.slot, expr.captured, expr.frameSize,
+                     expr.upvalues, expr.capturedParams);
+            return null;
+        }
+
+        @Override
+        public Void visitGroupingExpr(Expr.Grouping expr) {
+            number(GROUPING);
+            expr(expr.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitLiteralExpr(Expr.Literal expr) {
+            number(LITERAL);
+            value(expr.value);
+            return null;
+        }
+
+        @Override
+        public Void visitLogicalExpr(Expr.Logical expr) {
+            number(LOGICAL);
+            expr(expr.left);
+            token(expr.operator);
+            expr(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitSetExpr(Expr.Set expr) {
+            number(SET);
+            expr(expr.object);
+            token(expr.name);
+            expr(expr.value);
+            return null;
+        }
+
+        @Override
+        public Void visitSuperExpr(Expr.Super expr) {
+            number(SUPER);
+            token(expr.keyword);
+            token(expr.method);
+            variable(expr.access, expr.slot);
+            variable(expr.thisAccess, expr.thisSlot);
+            return null;
+        }
+
+        @Override
+        public Void visitThisExpr(Expr.This expr) {
+            number(THIS);
+            token(expr.keyword);
+            variable(expr.access, expr.slot);
+            return null;
+        }
+
+        @Override
+        public Void visitTernaryExpr(Expr.Ternary expr) {
+            number(TERNARY);
+            expr(expr.first);
+            token(expr.left);
+            expr(expr.second);
+            token(expr.right);
+            expr(expr.third);
+            return null;
+        }
+
+        @Override
+        public Void visitUnaryExpr(Expr.Unary expr) {
+            number(UNARY);
+            token(expr.operator);
+            expr(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitVariableExpr(Expr.Variable expr) {
+            number(VARIABLE);
+            token(expr.name);
+            variable(expr.access, expr.slot);
+            return null;
+        }
+
+        @Override
+        public Void visitBlockStmt(Stmt.Block stmt) {
+            number(BLOCK);
+            statements(stmt.statements);
+            return null;
+        }
+
+        @Override
+        public Void visitClassStmt(Stmt.Class stmt) {
+            number(CLASS);
+            token(stmt.name);
+            expr(stmt.superclass);
+            exprs(stmt.methods);
+            variable(stmt.access, stmt.slot);
+            flag(stmt.captured);
+            number(stmt.superSlot);
+            return null;
+        }
+
+        @Override
+        public Void visitExpressionStmt(Stmt.Expression stmt) {
+            number(EXPRESSION);
+            expr(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitForStmt(Stmt.For stmt) {
+            number(FOR);
+            stmt(stmt.initializer);
+            expr(stmt.condition);
+            expr(stmt.increment);
+            stmt(stmt.body);
+            return null;
+        }
+
+        @Override
+        public Void visitFunctionStmt(Stmt.Function stmt) {
+            number(FUNCTION);
+            function(stmt.name, stmt.params, stmt.body, stmt.access,
+                     stmt.slot, stmt.captured, stmt.frameSize,
+                     stmt.upvalues, stmt.capturedParams);
+            return null;
+        }
+
+        @Override
+        public Void visitIfStmt(Stmt.If stmt) {
+            number(IF);
+            expr(stmt.condition);
+            stmt(stmt.thenBranch);
+            stmt(stmt.elseBranch);
+            return null;
+        }
+
+        @Override
+        public Void visitPrintStmt(Stmt.Print stmt) {
+            number(PRINT);
+            expr(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitReturnStmt(Stmt.Return stmt) {
+            number(RETURN);
+            token(stmt.keyword);
+            expr(stmt.value);
+            return null;
+        }
+
+        @Override
+        public Void visitVarStmt(Stmt.Var stmt) {
+            number(VAR);
+            token(stmt.name);
+            expr(stmt.initializer);
+            variable(stmt.access, stmt.slot);
+            flag(stmt.captured);
+            return null;
+        }
+
+        @Override
+        public Void visitWhileStmt(Stmt.While stmt) {
+            number(WHILE);
+            expr(stmt.condition);
+            stmt(stmt.body);
+            return null;
+        }
+    }
+
+    private static class Reader {
+        private final ByteBuffer bytes;
+        private String[] table;
+        private final Symbols symbols = new Symbols();
+        private int line = 0;
+
+        Reader(ByteBuffer bytes) {
+            this.bytes = bytes;
+        }
+
+        List<Stmt> program(Interpreter interpreter) {
+            if(number() != MAGIC || number() != VERSION) return null;
+
+            table = new String[number()];
+            for(int i = 0; i < table.length; ++i) {
+                byte[] utf8 = new byte[number()];
+                bytes.get(utf8);
+                table[i] = new String(utf8, StandardCharsets.UTF_8);
+            }
+
+            List<Stmt> statements = statements();
+
+            String[] globals = new String[number()];
+            for(int i = 0; i < globals.length; ++i) globals[i] = symbol();
+            int scriptFrameSize = number();
+
+            // The slots in the tree are only right for an interpreter that
+            // hands out the same ones. Its globals are left alone until the
+            // entry is known to fit.
+            String[] defined = interpreter.globals.names();
+            for(int i = 0; i < Math.min(globals.length, defined.length); ++i) {
+                if(!globals[i].equals(defined[i])) return null;
+            }
+            for(int i = defined.length; i < globals.length; ++i) {
+                interpreter.globals.slot(globals[i]);
+            }
+            interpreter.scriptFrameSize = scriptFrameSize;
+            return statements;
+        }
+
+        private int number() {
+            int bits = 0;
+            for(int shift = 0; ; shift += 7) {
+                byte b = bytes.get();
+                bits |= (b & 0x7f) << shift;
+                if(b >= 0) break;
+            }
+            return (bits >>> 1) ^ -(bits & 1);
+        }
+
+        private boolean flag() {
+            return number() != 0;
+        }
+
+        private String string() {
+            return table[number()];
+        }
+
+        // A name, the same String wherever the program uses it.
+        private String symbol() {
+            return symbols.intern(string());
+        }
+
+        private int[] numbers() {
+            int count = number() - 1;
+            if(count < 0) return null;
+
+            int[] values = new int[count];
+            for(int i = 0; i < count; ++i) values[i] = number();
+            return values;
+        }
+
+        private Object value() {
+            switch(number()) {
+                case NIL: return null;
+                case FALSE: return false;
+                case TRUE: return true;
+                case NUMBER:
+                    long high = number() & 0xffffffffL;
+                    long low = number() & 0xffffffffL;
+                    return Double.longBitsToDouble(high << 32 | low);
+                case INTEGER: return (double)number();
+                case STRING: return string();
+                default: throw new IllegalStateException("Bad value.");
+            }
+        }
+
+        private Token token() {
+            int type = number();
+            if(type == 0) return null;
+
+            TokenType tokenType = tokenTypes[type - 1];
+            String lexeme = tokenType == TokenType.NUMBER ||
+                            tokenType == TokenType.STRING
+                    ? string() : symbol();
+            Object literal = value();
+            line += number();
+            return new Token(tokenType, lexeme, literal, line);
+        }
+
+        private List<Token> tokens() {
+            int count = number();
+            List<Token> tokens = new ArrayList<>(count);
+            for(int i = 0; i < count; ++i) tokens.add(token());
+            return tokens;
+        }
+
+        private Resolver.Access access() {
+            return accesses[number()];
+        }
+
+        private List<Expr> exprs() {
+            int count = number();
+            List<Expr> exprs = new ArrayList<>(count);
+            for(int i = 0; i < count; ++i) exprs.add(expr());
+            return exprs;
+        }
+
+        private List<Stmt> statements() {
+            int count = number();
+            List<Stmt> statements = new ArrayList<>(count);
+            for(int i = 0; i < count; ++i) statements.add(stmt());
+            return statements;
+        }
+
+        private Expr expr() {
+            switch(number()) {
+                case 0: return null;
+                case ASSIGN: {
+                    Expr.Assign expr = new Expr.Assign(token(), expr());
+                    expr.access = access();
+                    expr.slot = number();
+                    return expr;
+                }
+                case BINARY:
+                    return new Expr.Binary(expr(), token(), expr());
+                case CALL:
+                    return new Expr.Call(expr(), token(), exprs());
+                case GET:
+                    return new Expr.Get(expr(), token());
+                case FUNCTION_EXPR: {
+                    Expr.Function expr = new Expr.Function(
+                            token(), tokens(), statements());
+                    expr.access = access();
+                    expr.slot = number();
+                    expr.captured = flag();
+                    expr.frameSize = number();
+                    expr.upvalues = numbers();
+                    expr.capturedParams = numbers();
+                    return expr;
+                }
+                case GROUPING:
+                    return new Expr.Grouping(expr());
+                case LITERAL:
+                    return new Expr.Literal(value());
+                case LOGICAL:
+                    return new Expr.Logical(expr(), token(), expr());
+                case SET:
+                    return new Expr.Set(expr(), token(), expr());
+                case SUPER: {
+                    Expr.Super expr = new Expr.Super(token(), token());
+                    expr.access = access();
+                    expr.slot = number();
+                    expr.thisAccess = access();
+                    expr.thisSlot = number();
+                    return expr;
+                }
+                case THIS: {
+                    Expr.This expr = new Expr.This(token());
+                    expr.access = access();
+                    expr.slot = number();
+                    return expr;
+                }
+                case TERNARY:
+                    return new Expr.Ternary(expr(), token(), expr(),
+                                            token(), expr());
+                case UNARY:
+                    return new Expr.Unary(token(), expr());
+                case VARIABLE: {
+                    Expr.Variable expr = new Expr.Variable(token());
+                    expr.access = access();
+                    expr.slot = number();
+                    return expr;
+                }
+                default:
+                    throw new IllegalStateException("Bad expression.");
+            }
+        }
+
+        private Stmt stmt() {
+            Stmt stmt = stmtWithoutLine();
+            if(stmt != null) stmt.line = number();
+            return stmt;
+        }
+
+        private Stmt stmtWithoutLine() {
+            switch(number()) {
+                case 0: return null;
+                case BLOCK:
+                    return new Stmt.Block(statements());
+                case CLASS: {
+                    Token name = token();
+                    Expr.Variable superclass = (Expr.Variable)expr();
+                    List<Expr.Function> methods = new ArrayList<>();
+                    for(Expr method : exprs()) {
+                        methods.add((Expr.Function)method);
+                    }
+
+                    Stmt.Class stmt = new Stmt.Class(name, superclass,
+                                                     methods);
+                    stmt.access = access();
+                    stmt.slot = number();
+                    stmt.captured = flag();
+                    stmt.superSlot = number();
+                    return stmt;
+                }
+                case EXPRESSION:
+                    return new Stmt.Expression(expr());
+                case FOR:
+                    return new Stmt.For(stmt(), expr(), expr(), stmt());
+                case FUNCTION: {
+                    Stmt.Function stmt = new Stmt.Function(
+                            token(), tokens(), statements());
+                    stmt.access = access();
+                    stmt.slot = number();
+                    stmt.captured = flag();
+                    stmt.frameSize = number();
+                    stmt.upvalues = numbers();
+                    stmt.capturedParams = numbers();
+                    return stmt;
+                }
+                case IF:
+                    return new Stmt.If(expr(), stmt(), stmt());
+                case PRINT:
+                    return new Stmt.Print(expr());
+                case RETURN:
+                    return new Stmt.Return(token(), expr());
+                case VAR: {
+                    Stmt.Var stmt = new Stmt.Var(token(), expr());
+                    stmt.access = access();
+                    stmt.slot = number();
+                    stmt.captured = flag();
+                    return stmt;
+                }
+                case WHILE:
+                    return new Stmt.While(expr(), stmt());
+                default:
+                    throw new IllegalStateException("Bad statement.");
+            }
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.craftinginterpreters.lox;
+
+// What an Expr.Binary does with its operands, specialized on the operand
+// types seen at that node. A node starts out uninitialized and picks the
+// specialization for its first operands. When a specialization's
+// assumption fails, the node rewrites itself to the generic operation,
+// which handles every type, and stays there.
+abstract class BinaryOp {
+    abstract Object execute(Expr.Binary expr, Object left, Object right);
+
+    static final BinaryOp UNINITIALIZED = new BinaryOp() {
+        @Override
+        Object execute(Expr.Binary expr, Object left, Object right) {
+            expr.op = specialize(expr.operator.type, left, right);
+            return expr.op.execute(expr, left, right);
+        }
+    };
+
+    static final BinaryOp GENERIC = new BinaryOp() {
+        @Override
+        Object execute(Expr.Binary expr, Object left, Object right) {
+            return Interpreter.binary(expr, left, right);
+        }
+    };
+
+    private static final BinaryOp ADD_NUMBERS = new BinaryOp() {
+        @Override
+        Object execute(Expr.Binary expr, Object left, Object right) {
+            if(left instanceof Double && right instanceof Double) {
+                return Interpreter.box((double)left + (double)right);
+            }
+            return generalize(expr, left, right);
+        }
+    };
+
+    private static final BinaryOp ADD_STRINGS = new BinaryOp() {
+        @Override
+        Object execute(Expr.Binary expr, Object left, Object right) {
+            if(Rope.isString(left) && Rope.isString(right)) {
+                return Rope.concat((CharSequence)left, (CharSequence)right);
+            }
+            return generalize(expr, left, right);
+        }
+    };
+
+    private static final BinaryOp GREATER_NUMBERS = new BinaryOp() {
+        @Override
+        Object execute(Expr.Binary expr, Object left, Object right) {
+            if(left instanceof Double && right instanceof Double) {
+                return (double)left > (double)right;
+            }
+            return generalize(expr, left, right);
+        }
+    };
+
+    private static final BinaryOp GREATER_EQUAL_NUMBERS = new BinaryOp() {
+        @Override
+        Object execute(Expr.Binary expr, Object left, Object right) {
+            if(left instanceof Double && right instanceof Double) {
+                return (double)left >= (double)right;
+            }
+            return generalize(expr, left, right);
+        }
+    };
+
+    private static final BinaryOp LESS_NUMBERS = new BinaryOp() {
+        @Override
+        Object execute(Expr.Binary expr, Object left, Object right) {
+            if(left instanceof Double && right instanceof Double) {
+                return (double)left < (double)right;
+            }
+            return generalize(expr, left, right);
+        }
+    };
+
+    private static final BinaryOp LESS_EQUAL_NUMBERS = new BinaryOp() {
+        @Override
+        Object execute(Expr.Binary expr, Object left, Object right) {
+            if(left instanceof Double && right instanceof Double) {
+                return (double)left <= (double)right;
+            }
+            return generalize(expr, left, right);
+        }
+    };
+
+    private static BinaryOp specialize(TokenType operator,
+                                       Object left, Object right) {
+        boolean numbers = left instanceof Double && right instanceof Double;
+        switch(operator) {
+            case PLUS:
+                if(numbers) return ADD_NUMBERS;
+                if(Rope.isString(left) && Rope.isString(right)) {
+                    return ADD_STRINGS;
+                }
+                break;
+            case GREATER:
+                if(numbers) return GREATER_NUMBERS;
+                break;
+            case GREATER_EQUAL:
+                if(numbers) return GREATER_EQUAL_NUMBERS;
+                break;
+            case LESS:
+                if(numbers) return LESS_NUMBERS;
+                break;
+            case LESS_EQUAL:
+                if(numbers) return LESS_EQUAL_NUMBERS;
+                break;
+            default: break;
+        }
+
+        return GENERIC;
+    }
+
+    private static Object generalize(Expr.Binary expr,
+                                     Object left, Object right) {
+        expr.op = GENERIC;
+        return GENERIC.execute(expr, left, right);
+    }
+}
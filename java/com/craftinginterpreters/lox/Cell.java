@@ -0,0 +1,12 @@
+package com.craftinginterpreters.lox;
+
+// A local variable that a closure captures. It lives in the frame of the
+// function that declares it boxed in a Cell, and closures keep the Cell
+// itself, so they see assignments made after they were created.
+class Cell {
+    Object value;
+
+    Cell(Object value) {
+        this.value = value;
+    }
+}
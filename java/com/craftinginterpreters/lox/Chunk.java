@@ -0,0 +1,81 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+class Chunk {
+    byte[] code = new byte[16];
+    int count = 0;
+
+    // Run-length line table: lineStarts[i] is the offset of the first
+    // byte that came from lineNumbers[i].
+    private int[] lineStarts = new int[4];
+    private int[] lineNumbers = new int[4];
+    private int lineCount = 0;
+
+    private final List<Object> constantList = new ArrayList<>();
+    private final Map<Object, Integer> constantIndex = new HashMap<>();
+    // Filled in by finish(), read by the VM.
+    Object[] constants;
+
+    void write(int b, int line) {
+        if(count == code.length) {
+            code = Arrays.copyOf(code, count * 2);
+        }
+        code[count] = (byte)b;
+
+        if(lineCount == 0 || lineNumbers[lineCount - 1] != line) {
+            if(lineCount == lineStarts.length) {
+                lineStarts = Arrays.copyOf(lineStarts, lineCount * 2);
+                lineNumbers = Arrays.copyOf(lineNumbers, lineCount * 2);
+            }
+            lineStarts[lineCount] = count;
+            lineNumbers[lineCount] = line;
+            lineCount++;
+        }
+
+        count++;
+    }
+
+    // Returns the index of the value in the constant pool,
+    // reusing an existing entry for equal numbers and strings.
+    int addConstant(Object value) {
+        boolean shareable = value instanceof Double || value instanceof String;
+        if(shareable) {
+            Integer index = constantIndex.get(value);
+            if(index != null) return index;
+        }
+
+        constantList.add(value);
+        int index = constantList.size() - 1;
+        if(shareable) constantIndex.put(value, index);
+        return index;
+    }
+
+    int constantCount() {
+        return constantList.size();
+    }
+
+    void finish() {
+        code = Arrays.copyOf(code, count);
+        constants = constantList.toArray();
+    }
+
+    int getLine(int offset) {
+        int low = 0;
+        int high = lineCount - 1;
+        while(low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if(lineStarts[mid] <= offset) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+
+        return lineCount == 0 ? 0 : lineNumbers[low];
+    }
+}
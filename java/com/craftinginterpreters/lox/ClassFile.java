@@ -0,0 +1,391 @@
+package com.craftinginterpreters.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Writes the small part of the JVM class file format the Jit needs: one
+// class with fields and methods. Version 49 class files are checked by
+// the type-inferring verifier, so no StackMapTable has to be computed.
+class ClassFile {
+    private static final int VERSION = 49;
+
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_PRIVATE = 0x0002;
+    static final int ACC_FINAL = 0x0010;
+    static final int ACC_SUPER = 0x0020;
+
+    // The opcodes the Jit emits.
+    static final int ACONST_NULL = 0x01;
+    static final int ICONST_0 = 0x03;
+    static final int ICONST_1 = 0x04;
+    static final int BIPUSH = 0x10;
+    static final int SIPUSH = 0x11;
+    static final int LDC = 0x12;
+    static final int LDC_W = 0x13;
+    static final int LDC2_W = 0x14;
+    static final int ILOAD = 0x15;
+    static final int DLOAD = 0x18;
+    static final int ALOAD = 0x19;
+    static final int AALOAD = 0x32;
+    static final int ISTORE = 0x36;
+    static final int DSTORE = 0x39;
+    static final int ASTORE = 0x3a;
+    static final int AASTORE = 0x53;
+    static final int POP = 0x57;
+    static final int POP2 = 0x58;
+    static final int DUP = 0x59;
+    static final int DUP2 = 0x5c;
+    static final int DADD = 0x63;
+    static final int DSUB = 0x67;
+    static final int DMUL = 0x6b;
+    static final int DNEG = 0x77;
+    static final int IXOR = 0x82;
+    static final int DCMPL = 0x97;
+    static final int DCMPG = 0x98;
+    static final int IFEQ = 0x99;
+    static final int IFNE = 0x9a;
+    static final int IFLT = 0x9b;
+    static final int IFGE = 0x9c;
+    static final int IFGT = 0x9d;
+    static final int IFLE = 0x9e;
+    static final int GOTO = 0xa7;
+    static final int ARETURN = 0xb0;
+    static final int RETURN = 0xb1;
+    static final int GETSTATIC = 0xb2;
+    static final int GETFIELD = 0xb4;
+    static final int PUTFIELD = 0xb5;
+    static final int INVOKEVIRTUAL = 0xb6;
+    static final int INVOKESPECIAL = 0xb7;
+    static final int INVOKESTATIC = 0xb8;
+    static final int CHECKCAST = 0xc0;
+    static final int INSTANCEOF = 0xc1;
+    static final int WIDE = 0xc4;
+
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_DOUBLE = 6;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_STRING = 8;
+    private static final int CONSTANT_FIELDREF = 9;
+    private static final int CONSTANT_METHODREF = 10;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+    private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+    private final DataOutputStream pool = new DataOutputStream(poolBytes);
+    private final Map<String, Integer> poolIndex = new HashMap<>();
+    private int poolCount = 1;
+
+    private final String name;
+    private final String superName;
+    private final List<String> interfaces = new ArrayList<>();
+    private final List<byte[]> fields = new ArrayList<>();
+    private final List<byte[]> methods = new ArrayList<>();
+
+    ClassFile(String name, String superName) {
+        this.name = name;
+        this.superName = superName;
+    }
+
+    void addInterface(String name) {
+        interfaces.add(name);
+    }
+
+    void addField(int access, String name, String descriptor) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeShort(access);
+            out.writeShort(utf8(name));
+            out.writeShort(utf8(descriptor));
+            out.writeShort(0);
+        } catch(IOException error) {
+            throw new IllegalStateException(error);
+        }
+        fields.add(bytes.toByteArray());
+    }
+
+    Code addMethod(int access, String name, String descriptor,
+                   int argumentSlots) {
+        return new Code(access, name, descriptor, argumentSlots);
+    }
+
+    byte[] toByteArray() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            int thisClass = classRef(name);
+            int superClass = classRef(superName);
+            int[] interfaceRefs = new int[interfaces.size()];
+            for(int i = 0; i < interfaceRefs.length; ++i) {
+                interfaceRefs[i] = classRef(interfaces.get(i));
+            }
+
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(VERSION);
+            out.writeShort(poolCount);
+            pool.flush();
+            poolBytes.writeTo(out);
+
+            out.writeShort(ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(interfaceRefs.length);
+            for(int ref : interfaceRefs) out.writeShort(ref);
+
+            out.writeShort(fields.size());
+            for(byte[] field : fields) out.write(field);
+
+            out.writeShort(methods.size());
+            for(byte[] method : methods) out.write(method);
+
+            out.writeShort(0);
+        } catch(IOException error) {
+            throw new IllegalStateException(error);
+        }
+
+        return bytes.toByteArray();
+    }
+
+    // Constant pool.
+
+    private int entry(String key, int size) {
+        Integer index = poolIndex.get(key);
+        if(index != null) return index;
+
+        poolIndex.put(key, poolCount);
+        poolCount += size;
+        if(poolCount > 0xffff) {
+            throw new IllegalStateException("Constant pool overflow.");
+        }
+        return -1;
+    }
+
+    int utf8(String value) {
+        int index = entry("U" + value, 1);
+        if(index != -1) return index;
+
+        try {
+            pool.writeByte(CONSTANT_UTF8);
+            pool.writeUTF(value);
+        } catch(IOException error) {
+            throw new IllegalStateException(error);
+        }
+        return poolCount - 1;
+    }
+
+    int classRef(String internalName) {
+        int nameIndex = utf8(internalName);
+        return ref("C" + internalName, CONSTANT_CLASS, nameIndex, -1, 1);
+    }
+
+    int string(String value) {
+        int valueIndex = utf8(value);
+        return ref("S" + value, CONSTANT_STRING, valueIndex, -1, 1);
+    }
+
+    int doubleConstant(double value) {
+        int index = entry("D" + Double.doubleToRawLongBits(value), 2);
+        if(index != -1) return index;
+
+        try {
+            pool.writeByte(CONSTANT_DOUBLE);
+            pool.writeDouble(value);
+        } catch(IOException error) {
+            throw new IllegalStateException(error);
+        }
+        return poolCount - 2;
+    }
+
+    int fieldRef(String owner, String name, String descriptor) {
+        return memberRef(CONSTANT_FIELDREF, owner, name, descriptor);
+    }
+
+    int methodRef(String owner, String name, String descriptor) {
+        return memberRef(CONSTANT_METHODREF, owner, name, descriptor);
+    }
+
+    private int memberRef(int tag, String owner, String name,
+                          String descriptor) {
+        int ownerIndex = classRef(owner);
+        int nameAndType = ref("N" + name + " " + descriptor,
+                              CONSTANT_NAME_AND_TYPE,
+                              utf8(name), utf8(descriptor), 1);
+        return ref(tag + owner + "." + name + " " + descriptor,
+                   tag, ownerIndex, nameAndType, 1);
+    }
+
+    private int ref(String key, int tag, int first, int second, int size) {
+        int index = entry(key, size);
+        if(index != -1) return index;
+
+        try {
+            pool.writeByte(tag);
+            pool.writeShort(first);
+            if(second != -1) pool.writeShort(second);
+        } catch(IOException error) {
+            throw new IllegalStateException(error);
+        }
+        return poolCount - size;
+    }
+
+    static class Label {
+        private int offset = -1;
+        private int depth = -1;
+        private final List<Integer> uses = new ArrayList<>();
+    }
+
+    // A method body. Every emit takes the instruction's net effect on the
+    // operand stack, so max_stack can be tracked as the code is written.
+    class Code {
+        private final int access;
+        private final int name;
+        private final int descriptor;
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final List<Label> labels = new ArrayList<>();
+        private int depth = 0;
+        private int maxStack = 0;
+        private int maxLocals;
+
+        private Code(int access, String name, String descriptor,
+                     int argumentSlots) {
+            this.access = access;
+            this.name = utf8(name);
+            this.descriptor = utf8(descriptor);
+            this.maxLocals = argumentSlots;
+        }
+
+        private void adjust(int delta) {
+            depth += delta;
+            if(depth > maxStack) maxStack = depth;
+        }
+
+        private void u1(int value) {
+            bytes.write(value);
+        }
+
+        private void u2(int value) {
+            bytes.write(value >> 8);
+            bytes.write(value);
+        }
+
+        void op(int opcode, int delta) {
+            u1(opcode);
+            adjust(delta);
+        }
+
+        void push(int value) {
+            if(value >= -1 && value <= 5) {
+                op(ICONST_0 + value, 1);
+            } else if(value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                op(BIPUSH, 1);
+                u1(value);
+            } else {
+                op(SIPUSH, 1);
+                u2(value);
+            }
+        }
+
+        // A load or store of a local variable slot.
+        void local(int opcode, int index, int delta) {
+            boolean isDouble = opcode == DLOAD || opcode == DSTORE;
+            maxLocals = Math.max(maxLocals, index + (isDouble ? 2 : 1));
+
+            if(index > 0xff) {
+                u1(WIDE);
+                op(opcode, delta);
+                u2(index);
+            } else {
+                op(opcode, delta);
+                u1(index);
+            }
+        }
+
+        void constant(int index, int delta) {
+            if(delta == 2) {
+                op(LDC2_W, delta);
+                u2(index);
+            } else if(index > 0xff) {
+                op(LDC_W, delta);
+                u2(index);
+            } else {
+                op(LDC, delta);
+                u1(index);
+            }
+        }
+
+        // Instructions with a constant pool operand: fields, methods
+        // and types.
+        void ref(int opcode, int index, int delta) {
+            op(opcode, delta);
+            u2(index);
+        }
+
+        Label label() {
+            Label label = new Label();
+            labels.add(label);
+            return label;
+        }
+
+        void jump(int opcode, Label target, int delta) {
+            int at = bytes.size();
+            op(opcode, delta);
+            target.uses.add(at);
+            target.depth = depth;
+            u2(0);
+        }
+
+        void mark(Label label) {
+            label.offset = bytes.size();
+            if(label.depth != -1) depth = label.depth;
+        }
+
+        // Sets the stack depth after an instruction that does not fall
+        // through, for code only reachable from a later label.
+        void setDepth(int depth) {
+            this.depth = depth;
+        }
+
+        void finish() {
+            byte[] code = bytes.toByteArray();
+            if(code.length > 0xffff) {
+                throw new IllegalStateException("Method too large.");
+            }
+
+            for(Label label : labels) {
+                for(int use : label.uses) {
+                    int offset = label.offset - use;
+                    if(offset > Short.MAX_VALUE || offset < Short.MIN_VALUE) {
+                        throw new IllegalStateException("Jump too far.");
+                    }
+                    code[use + 1] = (byte)(offset >> 8);
+                    code[use + 2] = (byte)offset;
+                }
+            }
+
+            ByteArrayOutputStream method = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(method);
+            try {
+                out.writeShort(access);
+                out.writeShort(name);
+                out.writeShort(descriptor);
+                out.writeShort(1);
+                out.writeShort(utf8("Code"));
+                out.writeInt(12 + code.length);
+                out.writeShort(maxStack);
+                out.writeShort(maxLocals);
+                out.writeInt(code.length);
+                out.write(code);
+                out.writeShort(0);
+                out.writeShort(0);
+            } catch(IOException error) {
+                throw new IllegalStateException(error);
+            }
+            methods.add(method.toByteArray());
+        }
+    }
+}
@@ -0,0 +1,741 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Compiles resolved statements to bytecode for the VM. The Resolver has
+// already reported every static error, so this only tracks what the VM
+// needs: stack slots for locals and the upvalues closures capture.
+class Compiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    private static final int MAX_OPERAND = 0xffff;
+
+    private enum FunctionType {
+        FUNCTION,
+        INITIALIZER,
+        METHOD,
+        SCRIPT
+    }
+
+    private static class Local {
+        final String name;
+        final int depth;
+        boolean isCaptured = false;
+
+        Local(String name, int depth) {
+            this.name = name;
+            this.depth = depth;
+        }
+    }
+
+    private static class Upvalue {
+        final int index;
+        final boolean isLocal;
+
+        Upvalue(int index, boolean isLocal) {
+            this.index = index;
+            this.isLocal = isLocal;
+        }
+    }
+
+    private static class Loop {
+        final Loop enclosing;
+        final int start;
+        final int scopeDepth;
+        final List<Integer> breakJumps = new ArrayList<>();
+
+        Loop(Loop enclosing, int start, int scopeDepth) {
+            this.enclosing = enclosing;
+            this.start = start;
+            this.scopeDepth = scopeDepth;
+        }
+    }
+
+    // The function currently being compiled.
+    private static class FunctionState {
+        final FunctionState enclosing;
+        final Obj.Function function;
+        final FunctionType type;
+        final List<Local> locals = new ArrayList<>();
+        final List<Upvalue> upvalues = new ArrayList<>();
+        int scopeDepth = 0;
+        Loop loop = null;
+
+        FunctionState(FunctionState enclosing, Obj.Function function,
+                      FunctionType type) {
+            this.enclosing = enclosing;
+            this.function = function;
+            this.type = type;
+
+            // Slot zero holds the receiver of methods, the callee otherwise.
+            boolean hasReceiver = type == FunctionType.METHOD ||
+                                  type == FunctionType.INITIALIZER;
+            locals.add(new Local(hasReceiver ? "this" : "", 0));
+        }
+    }
+
+    private final VM vm;
+    private final ErrorReporter errors;
+    private FunctionState current;
+    private int line = 1;
+
+    Compiler(VM vm) {
+        this.vm = vm;
+        this.errors = vm.errors;
+    }
+
+    Obj.Function compile(List<Stmt> statements) {
+        current = new FunctionState(null, new Obj.Function(null),
+                                    FunctionType.SCRIPT);
+        for(Stmt statement : statements) {
+            compile(statement);
+        }
+
+        return endFunction();
+    }
+
+    private void compile(Expr expr) {
+        expr.accept(this);
+    }
+
+    private void compile(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    private Chunk chunk() {
+        return current.function.chunk;
+    }
+
+    private void emitByte(int b) {
+        chunk().write(b, line);
+    }
+
+    private void emitShort(int value) {
+        emitByte((value >> 8) & 0xff);
+        emitByte(value & 0xff);
+    }
+
+    private void emitOp(byte op, int operand) {
+        emitByte(op);
+        emitShort(operand);
+    }
+
+    private void emitConstant(Object value) {
+        emitOp(OpCode.CONSTANT, makeConstant(value));
+    }
+
+    private int makeConstant(Object value) {
+        int constant = chunk().addConstant(value);
+        if(constant > MAX_OPERAND) {
+            errors.error(line, "Too many constants in one chunk.");
+            return 0;
+        }
+
+        return constant;
+    }
+
+    // Jump offsets are four bytes wide, so bodies of any size fit.
+    private void emitInt(int value) {
+        emitShort((value >> 16) & 0xffff);
+        emitShort(value & 0xffff);
+    }
+
+    private int emitJump(byte op) {
+        emitByte(op);
+        emitInt(-1);
+        return chunk().count - 4;
+    }
+
+    private void patchJump(int offset) {
+        // -4 to adjust for the bytecode for the jump offset itself.
+        int jump = chunk().count - offset - 4;
+
+        byte[] code = chunk().code;
+        code[offset] = (byte)((jump >> 24) & 0xff);
+        code[offset + 1] = (byte)((jump >> 16) & 0xff);
+        code[offset + 2] = (byte)((jump >> 8) & 0xff);
+        code[offset + 3] = (byte)(jump & 0xff);
+    }
+
+    private void emitLoop(int loopStart) {
+        emitByte(OpCode.LOOP);
+        emitInt(chunk().count - loopStart + 4);
+    }
+
+    private void emitReturn() {
+        if(current.type == FunctionType.INITIALIZER) {
+            emitOp(OpCode.GET_LOCAL, 0);
+        } else {
+            emitByte(OpCode.NIL);
+        }
+
+        emitByte(OpCode.RETURN);
+    }
+
+    private Obj.Function endFunction() {
+        emitReturn();
+
+        Obj.Function function = current.function;
+        function.upvalueCount = current.upvalues.size();
+        function.chunk.finish();
+        return function;
+    }
+
+    private void beginScope() {
+        current.scopeDepth++;
+    }
+
+    private void endScope() {
+        current.scopeDepth--;
+
+        List<Local> locals = current.locals;
+        while(!locals.isEmpty() &&
+              locals.get(locals.size() - 1).depth > current.scopeDepth) {
+            Local local = locals.remove(locals.size() - 1);
+            emitByte(local.isCaptured ? OpCode.CLOSE_UPVALUE : OpCode.POP);
+        }
+    }
+
+    // Pops the locals a break or continue jumps out of, leaving them
+    // declared for the rest of the loop body.
+    private void discardLocals(int depth) {
+        List<Local> locals = current.locals;
+        for(int i = locals.size() - 1;
+            i >= 0 && locals.get(i).depth > depth; --i) {
+            emitByte(locals.get(i).isCaptured ? OpCode.CLOSE_UPVALUE
+                                              : OpCode.POP);
+        }
+    }
+
+    private void addLocal(String name) {
+        if(current.locals.size() > MAX_OPERAND) {
+            errors.error(line, "Too many local variables in function.");
+            return;
+        }
+
+        current.locals.add(new Local(name, current.scopeDepth));
+    }
+
+    // Binds the value on top of the stack to a new variable.
+    private void defineVariable(Token name) {
+        if(current.scopeDepth > 0) {
+            addLocal(name.lexeme);
+            return;
+        }
+
+        emitOp(OpCode.DEFINE_GLOBAL, globalSlot(name.lexeme));
+    }
+
+    private int globalSlot(String name) {
+        int slot = vm.globalSlot(name);
+        if(slot > MAX_OPERAND) {
+            errors.error(line, "Too many global variables.");
+            return 0;
+        }
+
+        return slot;
+    }
+
+    private static int resolveLocal(FunctionState state, String name) {
+        for(int i = state.locals.size() - 1; i >= 0; --i) {
+            if(state.locals.get(i).name.equals(name)) return i;
+        }
+
+        return -1;
+    }
+
+    private int resolveUpvalue(FunctionState state, String name) {
+        if(state.enclosing == null) return -1;
+
+        int local = resolveLocal(state.enclosing, name);
+        if(local != -1) {
+            state.enclosing.locals.get(local).isCaptured = true;
+            return addUpvalue(state, local, true);
+        }
+
+        int upvalue = resolveUpvalue(state.enclosing, name);
+        if(upvalue != -1) return addUpvalue(state, upvalue, false);
+
+        return -1;
+    }
+
+    private int addUpvalue(FunctionState state, int index, boolean isLocal) {
+        for(int i = 0; i < state.upvalues.size(); ++i) {
+            Upvalue upvalue = state.upvalues.get(i);
+            if(upvalue.index == index && upvalue.isLocal == isLocal) {
+                return i;
+            }
+        }
+
+        if(state.upvalues.size() > MAX_OPERAND) {
+            errors.error(line, "Too many closure variables in function.");
+            return 0;
+        }
+
+        state.upvalues.add(new Upvalue(index, isLocal));
+        return state.upvalues.size() - 1;
+    }
+
+    private void namedVariable(String name, boolean assign) {
+        int arg = resolveLocal(current, name);
+        if(arg != -1) {
+            emitOp(assign ? OpCode.SET_LOCAL : OpCode.GET_LOCAL, arg);
+        } else if((arg = resolveUpvalue(current, name)) != -1) {
+            emitOp(assign ? OpCode.SET_UPVALUE : OpCode.GET_UPVALUE, arg);
+        } else {
+            emitOp(assign ? OpCode.SET_GLOBAL : OpCode.GET_GLOBAL,
+                   globalSlot(name));
+        }
+    }
+
+    private void function(Token name, List<Token> params, List<Stmt> body,
+                          FunctionType type) {
+        current = new FunctionState(current,
+            new Obj.Function(name != null ? name.lexeme : null), type);
+        current.function.arity = params.size();
+
+        beginScope();
+        for(Token param : params) {
+            addLocal(param.lexeme);
+        }
+
+        for(Stmt statement : body) {
+            compile(statement);
+        }
+
+        FunctionState state = current;
+        Obj.Function function = endFunction();
+        current = state.enclosing;
+
+        emitOp(OpCode.CLOSURE, makeConstant(function));
+        for(Upvalue upvalue : state.upvalues) {
+            emitByte(upvalue.isLocal ? 1 : 0);
+            emitShort(upvalue.index);
+        }
+    }
+
+    private void functionDeclaration(Token name, List<Token> params,
+                                     List<Stmt> body) {
+        line = name.line;
+        // A local function is in scope inside its own body,
+        // so it can call itself recursively.
+        if(current.scopeDepth > 0) {
+            addLocal(name.lexeme);
+            function(name, params, body, FunctionType.FUNCTION);
+            return;
+        }
+
+        function(name, params, body, FunctionType.FUNCTION);
+        line = name.line;
+        emitOp(OpCode.DEFINE_GLOBAL, globalSlot(name.lexeme));
+    }
+
+    // Expr.Visitor<Void>
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        compile(expr.value);
+        line = expr.name.line;
+        namedVariable(expr.name.lexeme, true);
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        compile(expr.left);
+
+        if(expr.operator.type == TokenType.COMMA) {
+            emitByte(OpCode.POP);
+            compile(expr.right);
+            return null;
+        }
+
+        compile(expr.right);
+        line = expr.operator.line;
+
+        switch(expr.operator.type) {
+            case BANG_EQUAL:    emitByte(OpCode.NOT_EQUAL); break;
+            case EQUAL_EQUAL:   emitByte(OpCode.EQUAL); break;
+            case GREATER:       emitByte(OpCode.GREATER); break;
+            case GREATER_EQUAL: emitByte(OpCode.GREATER_EQUAL); break;
+            case LESS:          emitByte(OpCode.LESS); break;
+            case LESS_EQUAL:    emitByte(OpCode.LESS_EQUAL); break;
+            case MINUS:         emitByte(OpCode.SUBTRACT); break;
+            case PLUS:          emitByte(OpCode.ADD); break;
+            case SLASH:         emitByte(OpCode.DIVIDE); break;
+            case STAR:          emitByte(OpCode.MULTIPLY); break;
+            default: break;
+        }
+
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        // Method calls skip creating a bound method.
+        if(expr.callee instanceof Expr.Get) {
+            Expr.Get get = (Expr.Get)expr.callee;
+            compile(get.object);
+            arguments(expr.arguments);
+            line = get.name.line;
+            emitOp(OpCode.INVOKE, makeConstant(get.name.lexeme));
+            emitByte(expr.arguments.size());
+            return null;
+        }
+
+        if(expr.callee instanceof Expr.Super) {
+            Expr.Super superExpr = (Expr.Super)expr.callee;
+            line = superExpr.keyword.line;
+            namedVariable("this", false);
+            arguments(expr.arguments);
+            line = superExpr.method.line;
+            namedVariable("super", false);
+            emitOp(OpCode.SUPER_INVOKE, makeConstant(superExpr.method.lexeme));
+            emitByte(expr.arguments.size());
+            return null;
+        }
+
+        compile(expr.callee);
+        arguments(expr.arguments);
+        line = expr.paren.line;
+        emitByte(OpCode.CALL);
+        emitByte(expr.arguments.size());
+        return null;
+    }
+
+    private void arguments(List<Expr> arguments) {
+        for(Expr argument : arguments) {
+            compile(argument);
+        }
+    }
+
+    @Override
+    public Void visitFunctionExpr(Expr.Function expr) {
+        function(expr.name, expr.params, expr.body, FunctionType.FUNCTION);
+        return null;
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+        compile(expr.object);
+        line = expr.name.line;
+        emitOp(OpCode.GET_PROPERTY, makeConstant(expr.name.lexeme));
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        compile(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        if(expr.value == null) {
+            emitByte(OpCode.NIL);
+        } else if(expr.value.equals(true)) {
+            emitByte(OpCode.TRUE);
+        } else if(expr.value.equals(false)) {
+            emitByte(OpCode.FALSE);
+        } else {
+            emitConstant(expr.value);
+        }
+
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        compile(expr.left);
+
+        if(expr.operator.type == TokenType.OR) {
+            int elseJump = emitJump(OpCode.JUMP_IF_FALSE);
+            int endJump = emitJump(OpCode.JUMP);
+
+            patchJump(elseJump);
+            emitByte(OpCode.POP);
+
+            compile(expr.right);
+            patchJump(endJump);
+        } else {
+            int endJump = emitJump(OpCode.JUMP_IF_FALSE);
+
+            emitByte(OpCode.POP);
+            compile(expr.right);
+
+            patchJump(endJump);
+        }
+
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+        compile(expr.object);
+        compile(expr.value);
+        line = expr.name.line;
+        emitOp(OpCode.SET_PROPERTY, makeConstant(expr.name.lexeme));
+        return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super expr) {
+        line = expr.keyword.line;
+        namedVariable("this", false);
+        namedVariable("super", false);
+        line = expr.method.line;
+        emitOp(OpCode.GET_SUPER, makeConstant(expr.method.lexeme));
+        return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+        line = expr.keyword.line;
+        namedVariable("this", false);
+        return null;
+    }
+
+    @Override
+    public Void visitTernaryExpr(Expr.Ternary expr) {
+        compile(expr.first);
+
+        int elseJump = emitJump(OpCode.JUMP_IF_FALSE);
+        emitByte(OpCode.POP);
+        compile(expr.second);
+        int endJump = emitJump(OpCode.JUMP);
+
+        patchJump(elseJump);
+        emitByte(OpCode.POP);
+        compile(expr.third);
+        patchJump(endJump);
+
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        compile(expr.right);
+        line = expr.operator.line;
+
+        switch(expr.operator.type) {
+            case BANG:  emitByte(OpCode.NOT); break;
+            case MINUS: emitByte(OpCode.NEGATE); break;
+            default: break;
+        }
+
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        line = expr.name.line;
+        namedVariable(expr.name.lexeme, false);
+        return null;
+    }
+
+    // Stmt.Visitor<Void>
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        beginScope();
+        for(Stmt statement : stmt.statements) {
+            compile(statement);
+        }
+        endScope();
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        line = stmt.name.line;
+        int nameConstant = makeConstant(stmt.name.lexeme);
+        emitOp(OpCode.CLASS, nameConstant);
+        defineVariable(stmt.name);
+
+        if(stmt.superclass != null) {
+            compile(stmt.superclass);
+
+            beginScope();
+            addLocal("super");
+
+            namedVariable(stmt.name.lexeme, false);
+            line = stmt.superclass.name.line;
+            emitByte(OpCode.INHERIT);
+        }
+
+        line = stmt.name.line;
+        namedVariable(stmt.name.lexeme, false);
+
+        for(Expr.Function method : stmt.methods) {
+            FunctionType type = FunctionType.METHOD;
+            if(method.name.lexeme.equals("init")) {
+                type = FunctionType.INITIALIZER;
+            }
+
+            function(method.name, method.params, method.body, type);
+            line = method.name.line;
+            emitOp(OpCode.METHOD, makeConstant(method.name.lexeme));
+        }
+
+        emitByte(OpCode.POP);
+
+        if(stmt.superclass != null) endScope();
+
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        // The parser wraps function declarations in expression statements.
+        if(stmt.expression instanceof Expr.Function) {
+            Expr.Function function = (Expr.Function)stmt.expression;
+            if(function.name != null) {
+                functionDeclaration(function.name, function.params,
+                                    function.body);
+                return null;
+            }
+        }
+
+        compile(stmt.expression);
+        emitByte(OpCode.POP);
+        return null;
+    }
+
+    @Override
+    public Void visitForStmt(Stmt.For stmt) {
+        beginScope();
+        if(stmt.initializer != null) compile(stmt.initializer);
+
+        int conditionStart = chunk().count;
+        int exitJump = -1;
+        if(stmt.condition != null) {
+            compile(stmt.condition);
+            exitJump = emitJump(OpCode.JUMP_IF_FALSE);
+            emitByte(OpCode.POP);
+        }
+
+        // The increment comes before the body, so continue jumps back to
+        // it, and the body jumps back to it in turn.
+        int loopStart = conditionStart;
+        if(stmt.increment != null) {
+            int bodyJump = emitJump(OpCode.JUMP);
+            loopStart = chunk().count;
+            compile(stmt.increment);
+            emitByte(OpCode.POP);
+            emitLoop(conditionStart);
+            patchJump(bodyJump);
+        }
+
+        Loop loop = new Loop(current.loop, loopStart, current.scopeDepth);
+        current.loop = loop;
+        compile(stmt.body);
+        emitLoop(loop.start);
+
+        if(exitJump != -1) {
+            patchJump(exitJump);
+            emitByte(OpCode.POP);
+        }
+
+        for(int jump : loop.breakJumps) {
+            patchJump(jump);
+        }
+        current.loop = loop.enclosing;
+        endScope();
+
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        functionDeclaration(stmt.name, stmt.params, stmt.body);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        compile(stmt.condition);
+
+        int thenJump = emitJump(OpCode.JUMP_IF_FALSE);
+        emitByte(OpCode.POP);
+        compile(stmt.thenBranch);
+
+        int elseJump = emitJump(OpCode.JUMP);
+
+        patchJump(thenJump);
+        emitByte(OpCode.POP);
+
+        if(stmt.elseBranch != null) compile(stmt.elseBranch);
+        patchJump(elseJump);
+
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        compile(stmt.expression);
+        emitByte(OpCode.PRINT);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        line = stmt.keyword.line;
+
+        switch(stmt.keyword.type) {
+            case BREAK:
+                discardLocals(current.loop.scopeDepth);
+                current.loop.breakJumps.add(emitJump(OpCode.JUMP));
+                return null;
+            case CONTINUE:
+                discardLocals(current.loop.scopeDepth);
+                emitLoop(current.loop.start);
+                return null;
+            default: break;
+        }
+
+        if(stmt.value == null) {
+            emitReturn();
+            return null;
+        }
+
+        compile(stmt.value);
+        emitByte(OpCode.RETURN);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        if(stmt.initializer != null) {
+            compile(stmt.initializer);
+        } else {
+            emitByte(OpCode.NIL);
+        }
+
+        line = stmt.name.line;
+        defineVariable(stmt.name);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        Loop loop = new Loop(current.loop, chunk().count,
+                             current.scopeDepth);
+        current.loop = loop;
+
+        compile(stmt.condition);
+
+        int exitJump = emitJump(OpCode.JUMP_IF_FALSE);
+        emitByte(OpCode.POP);
+        compile(stmt.body);
+        emitLoop(loop.start);
+
+        patchJump(exitJump);
+        emitByte(OpCode.POP);
+
+        for(int jump : loop.breakJumps) {
+            patchJump(jump);
+        }
+        current.loop = loop.enclosing;
+
+        return null;
+    }
+}
@@ -0,0 +1,11 @@
+package com.craftinginterpreters.lox;
+
+// How a statement finished. Anything but NORMAL unwinds the enclosing
+// statements up to the loop or function that handles it.
+enum Completion {
+    NORMAL,
+    BREAK,
+    CONTINUE,
+    // The value is left in the Interpreter; see takeReturnValue().
+    RETURN
+}
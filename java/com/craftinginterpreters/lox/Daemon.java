@@ -0,0 +1,192 @@
+package com.craftinginterpreters.lox;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.ConnectException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Runs scripts sent to a Unix-domain socket, in one long-lived JVM, so a
+// script doesn't pay for starting one or for HotSpot warming up again.
+// Every request is a program of its own, run with the flags the daemon
+// was started with, and gets back what it printed and its exit code.
+// LoxClient is the other end.
+//
+// A request is one frame and a response is any number of them:
+//   request:  'f' charset path, or 's' source
+//   response: 'o' stdout text or 'e' stderr text, until 'x' exit code
+// A charset name, a path, a source or a text is an int byte count and
+// that many bytes of UTF-8, whatever the charsets of the two JVMs, and an
+// exit code is an int. A request's strings are at most 16 MiB. A script
+// file is read in the client's charset, as running Lox where the client
+// runs would. Exit codes are those of running Lox on the script, or 64
+// for a request that isn't one.
+final class Daemon {
+    static final byte FILE = 'f';
+    static final byte SOURCE = 's';
+    static final byte STDOUT = 'o';
+    static final byte STDERR = 'e';
+    static final byte EXIT = 'x';
+
+    // The longest charset name, path or source a request may send, so a
+    // bad length can't have the daemon allocate whatever it says.
+    private static final int MAX_STRING = 16 * 1024 * 1024;
+
+    private Daemon() {}
+
+    static void serve(Path socket) throws IOException {
+        if(!stale(socket)) {
+            System.err.println("Can't serve on " + socket +
+                               ": it exists and isn't a stale socket.");
+
+            // <sysexits.h> EX_USAGE (64): The command was used incorrectly.
+            System.exit(64);
+        }
+        // Left behind by a daemon that didn't exit cleanly.
+        Files.deleteIfExists(socket);
+
+        // As many requests run at once as there are cores to run them
+        // on. The rest wait their turn, connected.
+        ExecutorService requests = Executors.newFixedThreadPool(
+                Runtime.getRuntime().availableProcessors());
+        try(ServerSocketChannel server =
+                ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            server.bind(UnixDomainSocketAddress.of(socket));
+            socket.toFile().deleteOnExit();
+
+            for(;;) {
+                SocketChannel client = server.accept();
+                requests.execute(() -> respond(client));
+            }
+        } finally {
+            requests.shutdownNow();
+        }
+    }
+
+    // Whether socket is free to bind: nothing is there, or a socket no
+    // daemon is listening on. Anything else at the path is the user's.
+    private static boolean stale(Path socket) throws IOException {
+        if(!Files.exists(socket, LinkOption.NOFOLLOW_LINKS)) return true;
+
+        int mode = (Integer)Files.getAttribute(socket, "unix:mode",
+                                               LinkOption.NOFOLLOW_LINKS);
+        // S_IFSOCK from <sys/stat.h>.
+        if((mode & 0170000) != 0140000) return false;
+
+        try(SocketChannel probe = SocketChannel.open(
+                UnixDomainSocketAddress.of(socket))) {
+            // Another daemon is serving on it.
+            return false;
+        } catch(ConnectException error) {
+            return true;
+        }
+    }
+
+    private static void respond(SocketChannel client) {
+        try(SocketChannel channel = client;
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    Channels.newInputStream(channel)));
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(
+                            Channels.newOutputStream(channel)))) {
+            int exitCode = run(in, out);
+            out.writeByte(EXIT);
+            out.writeInt(exitCode);
+        } catch(IOException | UncheckedIOException error) {
+            // The client went away, so there's no one to tell.
+        }
+    }
+
+    private static int run(DataInputStream in, DataOutputStream out)
+            throws IOException {
+        int kind = in.read();
+        if(kind != FILE && kind != SOURCE) {
+            // <sysexits.h> EX_USAGE (64): The command was used incorrectly
+            return 64;
+        }
+
+        Charset charset = null;
+        if(kind == FILE) {
+            String name = string(in);
+            if(name == null) return 64;
+            try {
+                charset = Charset.forName(name);
+            } catch(IllegalArgumentException error) {
+                return 64;
+            }
+        }
+        String script = string(in);
+        if(script == null) return 64;
+
+        Output stdout = new Frames(out, STDOUT);
+        Output stderr = new Frames(out, STDERR);
+        Lox.Program program = new Lox.Program(
+                new ErrorReporter(stdout, stderr), stdout);
+        try {
+            if(kind == FILE) {
+                try {
+                    Lox.load(program, script, charset);
+                } catch(IOException error) {
+                    program.errors.unreadable(error);
+                }
+            } else {
+                program.load(new Scanner(script, program.errors));
+            }
+            program.run();
+        } catch(UncheckedIOException error) {
+            throw error;
+        } catch(RuntimeException | StackOverflowError error) {
+            // A failure of the interpreter's, which would have ended a Lox
+            // running only this script, with the JVM's exit code.
+            stdout.flush();
+            stderr.println(error.toString());
+            stderr.flush();
+            return 1;
+        }
+
+        stdout.flush();
+        return program.errors.exitCode();
+    }
+
+    // A request's string, or null if its length is out of bounds.
+    private static String string(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if(length < 0 || length > MAX_STRING) return null;
+        return LoxClient.string(in, length);
+    }
+
+    // One of a request's output streams, sent to the client as frames.
+    private static class Frames extends Output {
+        private final DataOutputStream out;
+        private final byte kind;
+
+        Frames(DataOutputStream out, byte kind) {
+            this.out = out;
+            this.kind = kind;
+        }
+
+        @Override
+        void write(CharSequence text) {
+            try {
+                out.writeByte(kind);
+                LoxClient.string(out, text.toString());
+                out.flush();
+            } catch(IOException error) {
+                throw new UncheckedIOException(error);
+            }
+        }
+    }
+}
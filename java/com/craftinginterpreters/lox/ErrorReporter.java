@@ -0,0 +1,108 @@
+package com.craftinginterpreters.lox;
+
+import java.io.IOException;
+
+// The errors found in one program: whether there were any, which decides
+// the exit code, and their messages for its stderr. The messages of a file in
+// a batch say which file they're about and wait until release(), since
+// the files are parsed in parallel but their output has to come out in
+// order.
+class ErrorReporter {
+    boolean hadError = false;
+    boolean hadRuntimeError = false;
+    boolean hadReadError = false;
+
+    // The program's stdout, flushed before each message, and stderr.
+    private final Output out;
+    private final Output err;
+    private final String file;
+    private StringBuilder held;
+
+    ErrorReporter() {
+        this(Output.stdout, Output.stderr);
+    }
+
+    ErrorReporter(Output out, Output err) {
+        this.out = out;
+        this.err = err;
+        this.file = null;
+        this.held = null;
+    }
+
+    ErrorReporter(String file) {
+        this.out = Output.stdout;
+        this.err = Output.stderr;
+        this.file = file;
+        this.held = new StringBuilder();
+    }
+
+    void error(int line, String message) {
+        report(line, "", message);
+    }
+
+    void error(Token token, String message) {
+        if(token.type == TokenType.EOF) {
+            report(token.line, " at end", message);
+        } else {
+            report(token.line, " at '" + token.lexeme + "'", message);
+        }
+    }
+
+    void runtimeError(RuntimeError error) {
+        print(error.getMessage() + "\n[line " + error.line + "]");
+        hadRuntimeError = true;
+    }
+
+    void unreadable(IOException error) {
+        print("Can't read file: " + error.getMessage());
+        hadReadError = true;
+    }
+
+    // Writes out the messages held so far and lets later ones through.
+    void release() {
+        if(held == null) return;
+
+        out.flush();
+        err.print(held);
+        err.flush();
+        held = null;
+    }
+
+    int exitCode() {
+        // <sysexits.h> EX_NOINPUT (66)
+        // An input file did not exist or was not readable.
+        if(hadReadError) return 66;
+
+        // <sysexits.h> EX_DATAERR (65)
+        // The input data was incorrect in some way.
+        if(hadError) return 65;
+
+        // <sysexits.h> EX_SOFTWARE (70)
+        // An internal software error has been detected.
+        if(hadRuntimeError) return 70;
+
+        return 0;
+    }
+
+    private void report(int line, String where, String message) {
+        // Whatever the Parser made of a source cut short isn't worth
+        // telling.
+        if(hadReadError) return;
+        print("[line " + line + "] Error" + where + ": " + message);
+        hadError = true;
+    }
+
+    private void print(String message) {
+        if(file != null) message = file + ": " + message;
+
+        if(held != null) {
+            held.append(message).append(System.lineSeparator());
+            return;
+        }
+
+        // After everything printed before it.
+        out.flush();
+        err.println(message);
+        err.flush();
+    }
+}
@@ -32,6 +32,8 @@ abstract class Expr {
 
     final Token name;
     final Expr value;
+    Resolver.Access access = Resolver.Access.GLOBAL;
+    int slot;
   }
   static class Binary extends Expr {
     Binary(Expr left, Token operator, Expr right) {
@@ -48,6 +50,7 @@ abstract class Expr {
     final Expr left;
     final Token operator;
     final Expr right;
+    BinaryOp op = BinaryOp.UNINITIALIZED;
   }
   static class Call extends Expr {
     Call(Expr callee, Token paren, List<Expr> arguments) {
@@ -64,6 +67,7 @@ abstract class Expr {
     final Expr callee;
     final Token paren;
     final List<Expr> arguments;
+    MethodCache methods = new MethodCache();
   }
   static class Get extends Expr {
     Get(Expr object, Token name) {
@@ -78,6 +82,7 @@ abstract class Expr {
 
     final Expr object;
     final Token name;
+    PropertyCache cache = new PropertyCache();
   }
   static class Function extends Expr {
     Function(Token name, List<Token> params, List<Stmt> body) {
@@ -94,6 +99,13 @@ abstract class Expr {
     final Token name;
     final List<Token> params;
     final List<Stmt> body;
+    Resolver.Access access = Resolver.Access.GLOBAL;
+    int slot = -1;
+    boolean captured;
+    int frameSize;
+    int[] upvalues;
+    int[] capturedParams;
+    Jit.Profile profile = new Jit.Profile();
   }
   static class Grouping extends Expr {
     Grouping(Expr expression) {
@@ -150,6 +162,7 @@ abstract class Expr {
     final Expr object;
     final Token name;
     final Expr value;
+    PropertyCache cache = new PropertyCache();
   }
   static class Super extends Expr {
     Super(Token keyword, Token method) {
@@ -164,6 +177,10 @@ abstract class Expr {
 
     final Token keyword;
     final Token method;
+    Resolver.Access access = Resolver.Access.GLOBAL;
+    int slot;
+    Resolver.Access thisAccess = Resolver.Access.GLOBAL;
+    int thisSlot;
   }
   static class This extends Expr {
     This(Token keyword) {
@@ -176,6 +193,8 @@ abstract class Expr {
     }
 
     final Token keyword;
+    Resolver.Access access = Resolver.Access.GLOBAL;
+    int slot;
   }
   static class Ternary extends Expr {
     Ternary(Expr first, Token left, Expr second, Token right, Expr third) {
@@ -222,6 +241,8 @@ abstract class Expr {
     }
 
     final Token name;
+    Resolver.Access access = Resolver.Access.GLOBAL;
+    int slot;
   }
 
   abstract <R> R accept(Visitor<R> visitor);
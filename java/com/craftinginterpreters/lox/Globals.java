@@ -0,0 +1,65 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// Global variables, stored in slots the Resolver hands out by name. A
+// name gets its slot the first time any code refers to it, so a function
+// using a global that is only defined later, or a REPL line using one an
+// earlier line defined, shares that slot. Names are only looked up while
+// resolving; running code indexes the array.
+class Globals {
+    // Value of a slot whose variable has not been defined yet.
+    private static final Object UNDEFINED = new Object();
+
+    private final Map<String, Integer> slots = new HashMap<>();
+    private Object[] values = new Object[0];
+
+    int slot(String name) {
+        Integer slot = slots.get(name);
+        if(slot != null) return slot;
+
+        slot = slots.size();
+        slots.put(name, slot);
+        if(slot == values.length) {
+            int length = values.length;
+            values = Arrays.copyOf(values, Math.max(16, length * 2));
+            Arrays.fill(values, length, values.length, UNDEFINED);
+        }
+        return slot;
+    }
+
+    // The names with slots, each at its slot.
+    String[] names() {
+        String[] names = new String[slots.size()];
+        for(Map.Entry<String, Integer> slot : slots.entrySet()) {
+            names[slot.getValue()] = slot.getKey();
+        }
+        return names;
+    }
+
+    Object get(int slot, Token name) {
+        Object value = values[slot];
+        if(value == UNDEFINED) throw undefined(name);
+        return value;
+    }
+
+    void assign(int slot, Token name, Object value) {
+        if(values[slot] == UNDEFINED) throw undefined(name);
+        values[slot] = value;
+    }
+
+    void define(int slot, Object value) {
+        values[slot] = value;
+    }
+
+    void define(String name, Object value) {
+        define(slot(name), value);
+    }
+
+    private static RuntimeError undefined(Token name) {
+        return new RuntimeError(name,
+                "Undefined variable '" + name.lexeme + "'.");
+    }
+}
@@ -1,20 +1,43 @@
 package com.craftinginterpreters.lox;
 
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 class Interpreter
     implements Expr.Visitor<Object>,
-        Stmt.Visitor<Void> {
-    final Environment globals = new Environment();
-    private Environment environment = globals;
-    private final Map<Expr, Integer> locals = new HashMap<>();
+        Stmt.Visitor<Completion> {
+    final ErrorReporter errors;
+    // Where print statements write.
+    private final Output out;
+    final Globals globals = new Globals();
+    // Where this program's instances start out.
+    final Shape emptyShape = new Shape();
+    // Slots the top-level code's blocks need, set by the Resolver.
+    int scriptFrameSize = 0;
+    // Locals of the running function, or of the top-level code's blocks.
+    private Object[] frame = EMPTY_FRAME;
+    // The Cells the running closure captured.
+    private Cell[] upvalues = NO_UPVALUES;
+    // Set by a return statement until the function call picks it up.
+    private Object returnValue = null;
+    // Told each function call and statement, with --profile.
+    Profiler profiler = null;
+
+    // Value of a variable declared without an initializer; reads as nil.
+    static final Object unassigned = new Object();
+
+    static final Object[] EMPTY_FRAME = new Object[0];
+    static final Cell[] NO_UPVALUES = new Cell[0];
+
+    Interpreter(ErrorReporter errors) {
+        this(errors, Output.stdout);
+    }
+
+    Interpreter(ErrorReporter errors, Output out) {
+        this.errors = errors;
+        this.out = out;
 
-    private final Object unassigned = new Object();
-
-    Interpreter() {
         // other native functions:
         // reading input from the user,
         // working with files, etc.
@@ -24,7 +47,7 @@ class Interpreter
 
             @Override
             public Object call(Interpreter interpreter,
-                               List<Object> arguments) {
+                               Object[] arguments) {
                 return (double)System.currentTimeMillis() / 1000.0;
             }
 
@@ -36,12 +59,15 @@ class Interpreter
     // before inclusion of statements
 //    void interpret(Expr expression) {
     void interpret(List<Stmt> statements) {
+        frame = scriptFrameSize == 0
+                ? EMPTY_FRAME : new Object[scriptFrameSize];
+        upvalues = NO_UPVALUES;
         try {
             for(Stmt statement : statements) {
                 execute(statement);
             }
         } catch(RuntimeError error) {
-            Lox.runtimeError(error);
+            errors.runtimeError(error);
         }
     }
 
@@ -49,64 +75,143 @@ class Interpreter
         return expr.accept(this);
     }
 
-    private void execute(Stmt stmt) {
-        stmt.accept(this);
+    private Completion execute(Stmt stmt) {
+        if(profiler != null) profiler.line(stmt.line);
+        return stmt.accept(this);
     }
 
-    void resolve(Expr expr, int depth) {
-        locals.put(expr, depth);
+    Completion executeBody(List<Stmt> body, Object[] frame,
+                           Cell[] upvalues) {
+        Object[] previousFrame = this.frame;
+        Cell[] previousUpvalues = this.upvalues;
+        try {
+            this.frame = frame;
+            this.upvalues = upvalues;
+            return executeBlock(body);
+        } finally {
+            this.frame = previousFrame;
+            this.upvalues = previousUpvalues;
+        }
     }
 
-    void executeBlock(List<Stmt> statements, Environment environment) {
-        Environment previous = this.environment;
-        try {
-            this.environment = environment;
+    private Completion executeBlock(List<Stmt> statements) {
+        for(Stmt statement : statements) {
+            Completion completion = execute(statement);
+            if(completion != Completion.NORMAL) return completion;
+        }
+        return Completion.NORMAL;
+    }
 
-            for(Stmt statement : statements) {
-                execute(statement);
-            }
-        } finally {
-            this.environment = previous;
+    Object takeReturnValue() {
+        Object value = returnValue;
+        returnValue = null;
+        return value;
+    }
+
+    private Object lookUpVariable(Token name, Resolver.Access access,
+                                  int slot) {
+        switch(access) {
+            case LOCAL:
+                Object value = frame[slot];
+                if(value instanceof Cell) return ((Cell)value).value;
+                return value;
+            case UPVALUE:
+                return upvalues[slot].value;
+            default:
+                return globals.get(slot, name);
         }
     }
 
-    private Object lookUpVariable(Token name, Expr expr) {
-        Integer distance = locals.get(expr);
-        Object value;
-        if(distance != null) {
-            value = environment.getAt(distance, name.lexeme);
+    // A captured local's Cell goes in the frame before its value is
+    // computed, so closures created in the meantime share it.
+    private void declare(Resolver.Access access, int slot,
+                         boolean captured) {
+        if(access == Resolver.Access.LOCAL && captured) {
+            frame[slot] = new Cell(unassigned);
+        }
+    }
+
+    private void define(Resolver.Access access, int slot, boolean captured,
+                        Object value) {
+        if(access == Resolver.Access.GLOBAL) {
+            globals.define(slot, value);
+        } else if(captured) {
+            ((Cell)frame[slot]).value = value;
         } else {
-            value = globals.get(name);
+            frame[slot] = value;
         }
+    }
 
-        return value;
+    // Slots of the running frame and Cells of the running closure, in the
+    // Resolver's encoding of a function's captures.
+    private Cell[] capture(int[] captures) {
+        if(captures.length == 0) return NO_UPVALUES;
+
+        Cell[] cells = new Cell[captures.length];
+        for(int i = 0; i < captures.length; ++i) {
+            int capture = captures[i];
+            cells[i] = capture >= 0
+                    ? (Cell)frame[capture] : upvalues[-1 - capture];
+        }
+        return cells;
     }
 
-    private Boolean isTruthy(Object object) {
+    static Boolean isTruthy(Object object) {
         if(object == null) return false;
         if(object instanceof Boolean) return (Boolean)object;
         return true;
     }
 
-    private Boolean isEqual(Object a, Object b) {
+    static Boolean isEqual(Object a, Object b) {
         // nil is only equal to nil
         if(a == null && b == null) return true;
         if(a == null) return false;
 
+        // A String and a Rope with the same characters are equal.
+        if(a instanceof Rope) a = a.toString();
+        if(b instanceof Rope) b = b.toString();
+
         return a.equals(b);
     }
 
-    private void checkNumberOperand(Token operator, Object operand) {
+    // Integral results in this range are boxed from a cache instead of
+    // being allocated: loop counters, indices, recursion arguments.
+    private static final int BOX_CACHE_LOW = -128;
+    private static final int BOX_CACHE_HIGH = 1024;
+    private static final Double[] boxCache =
+            new Double[BOX_CACHE_HIGH - BOX_CACHE_LOW + 1];
+    private static final String[] textCache =
+            new String[BOX_CACHE_HIGH - BOX_CACHE_LOW + 1];
+    private static final long NEGATIVE_ZERO = Double.doubleToRawLongBits(-0.0);
+
+    static {
+        for(int i = BOX_CACHE_LOW; i <= BOX_CACHE_HIGH; ++i) {
+            boxCache[i - BOX_CACHE_LOW] = (double)i;
+            textCache[i - BOX_CACHE_LOW] = Integer.toString(i);
+        }
+    }
+
+    static Object box(double value) {
+        int integer = (int)value;
+        if(integer == value && integer >= BOX_CACHE_LOW &&
+                integer <= BOX_CACHE_HIGH &&
+                Double.doubleToRawLongBits(value) != NEGATIVE_ZERO) {
+            return boxCache[integer - BOX_CACHE_LOW];
+        }
+
+        return value;
+    }
+
+    static void checkNumberOperand(Token operator, Object operand) {
         if(operand instanceof Double) return;
         throw new RuntimeError(operator, "Operand must be a number.");
     }
 
-    private void checkNumberOperands(Token operator, Object left, Object right) {
+    static void checkNumberOperands(Token operator, Object left, Object right) {
         if(left instanceof Double && right instanceof Double)
         {
-            if(operator.type == TokenType.SLASH &&
-                    (double)right == 0) {
-                throw new RuntimeError(operator, "Denominator must be non-zero.");
+            if(operator.type == TokenType.SLASH) {
+                checkDenominator(operator, (double)right);
             }
             return;
         }
@@ -114,19 +219,60 @@ class Interpreter
         throw new RuntimeError(operator, "Operands must be numbers.");
     }
 
-    private String stringify(Object object) {
+    static void checkDenominator(Token operator, double denominator) {
+        if(denominator == 0) {
+            throw new RuntimeError(operator, "Denominator must be non-zero.");
+        }
+    }
+
+    static String stringify(Object object) {
         if(object == null) return "nil";
 
-        // Hack. Work around Java adding ".0" to integer-valued doubles.
-        if(object instanceof Double) {
-            String text = object.toString();
-            if(text.endsWith(".0")) {
-                text = text.substring(0, text.length() - 2);
+        if(object instanceof Double) return stringify((double)object);
+
+        return object.toString();
+    }
+
+    // Double.toString() without the ".0" it adds to integers. It only
+    // writes integers that way below 1e7, so those are done here and
+    // anything else it prints is already right.
+    static String stringify(double value) {
+        long integer = (long)value;
+        if(integer != value || integer <= -10_000_000 ||
+                integer >= 10_000_000) {
+            return Double.toString(value);
+        }
+
+        if(integer >= BOX_CACHE_LOW && integer <= BOX_CACHE_HIGH) {
+            if(Double.doubleToRawLongBits(value) == NEGATIVE_ZERO) {
+                return "-0";
             }
-            return text;
+            return textCache[(int)integer - BOX_CACHE_LOW];
         }
+        return Long.toString(integer);
+    }
 
-        return object.toString();
+    static Object concat(Object left, Object right) {
+        return Rope.concat(stringOperand(left), stringOperand(right));
+    }
+
+    private static CharSequence stringOperand(Object object) {
+        if(Rope.isString(object)) return (CharSequence)object;
+        return stringify(object);
+    }
+
+    static Object add(Object left, Object right, Token operator) {
+        if(left instanceof Double && right instanceof Double) {
+            return box((double)left + (double)right);
+        }
+
+        // "string" + 0 = "string0"
+        if(Rope.isString(left) || Rope.isString(right)) {
+            return concat(left, right);
+        }
+
+        throw new RuntimeError(operator,
+            "Operands must be two numbers or two strings.");
     }
 
     // Expr.Visitor<Object>
@@ -140,11 +286,21 @@ class Interpreter
             ((LoxFunction)value).define(name);
         }
 
-        Integer distance = locals.get(expr);
-        if(distance != null) {
-            environment.assignAt(distance, expr.name, value);
-        } else {
-            globals.assign(expr.name, value);
+        switch(expr.access) {
+            case LOCAL:
+                Object current = frame[expr.slot];
+                if(current instanceof Cell) {
+                    ((Cell)current).value = value;
+                } else {
+                    frame[expr.slot] = value;
+                }
+                break;
+            case UPVALUE:
+                upvalues[expr.slot].value = value;
+                break;
+            default:
+                globals.assign(expr.slot, expr.name, value);
+                break;
         }
 
         // Before Resolver
@@ -154,9 +310,17 @@ class Interpreter
 
     @Override
     public Object visitBinaryExpr(Expr.Binary expr) {
+        if(isArithmetic(expr)) return box(evaluateNumber(expr));
+
         Object left = evaluate(expr.left);
         Object right = evaluate(expr.right);
 
+        return expr.op.execute(expr, left, right);
+    }
+
+    // Every operator on every type of operands. Nodes use it once their
+    // operands stop matching a specialized BinaryOp.
+    static Object binary(Expr.Binary expr, Object left, Object right) {
         switch(expr.operator.type) {
             case COMMA: return right;
 
@@ -176,28 +340,8 @@ class Interpreter
                 checkNumberOperands(expr.operator, left, right);
                 return (double)left <= (double)right;
 
-            case MINUS:
-                checkNumberOperands(expr.operator, left, right);
-                return (double)left - (double)right;
             case PLUS:
-                if(left instanceof Double && right instanceof Double) {
-                    return (double)left + (double)right;
-                }
-
-                // "string" + 0 = "string0"
-                if(left instanceof String || right instanceof String) {
-                    return stringify(left) + stringify(right);
-                }
-
-                throw new RuntimeError(expr.operator,
-                    "Operands must be two numbers or two strings.");
-
-            case SLASH:
-                checkNumberOperands(expr.operator, left, right);
-                return (double)left / (double)right;
-            case STAR:
-                checkNumberOperands(expr.operator, left, right);
-                return (double)left * (double)right;
+                return add(left, right, expr.operator);
             default: break;
         }
 
@@ -205,44 +349,185 @@ class Interpreter
         return null;
     }
 
+    private static final Object UNBOXED = new Object();
+
+    // -, * and / and negation always produce a number, so when one is
+    // the operand of another the intermediate result is never boxed.
+    private static boolean isArithmetic(Expr expr) {
+        if(expr instanceof Expr.Binary) {
+            switch(((Expr.Binary)expr).operator.type) {
+                case MINUS: case SLASH: case STAR: return true;
+                default: return false;
+            }
+        }
+
+        if(expr instanceof Expr.Unary) {
+            return ((Expr.Unary)expr).operator.type == TokenType.MINUS;
+        }
+
+        if(expr instanceof Expr.Grouping) {
+            return isArithmetic(((Expr.Grouping)expr).expression);
+        }
+
+        return false;
+    }
+
+    // Only for expressions isArithmetic() accepts.
+    private double evaluateNumber(Expr expr) {
+        if(expr instanceof Expr.Grouping) {
+            return evaluateNumber(((Expr.Grouping)expr).expression);
+        }
+
+        if(expr instanceof Expr.Unary) {
+            Expr.Unary unary = (Expr.Unary)expr;
+            if(isArithmetic(unary.right)) return -evaluateNumber(unary.right);
+
+            Object right = evaluate(unary.right);
+            checkNumberOperand(unary.operator, right);
+            return -(double)right;
+        }
+
+        Expr.Binary binary = (Expr.Binary)expr;
+        double a = 0;
+        double b = 0;
+        Object left = UNBOXED;
+        Object right = UNBOXED;
+
+        if(isArithmetic(binary.left)) {
+            a = evaluateNumber(binary.left);
+        } else {
+            left = evaluate(binary.left);
+        }
+
+        if(isArithmetic(binary.right)) {
+            b = evaluateNumber(binary.right);
+        } else {
+            right = evaluate(binary.right);
+        }
+
+        // Operands are checked only once both have been evaluated.
+        if(!(left == UNBOXED || left instanceof Double) ||
+                !(right == UNBOXED || right instanceof Double)) {
+            throw new RuntimeError(binary.operator,
+                    "Operands must be numbers.");
+        }
+        if(left != UNBOXED) a = (double)left;
+        if(right != UNBOXED) b = (double)right;
+
+        if(binary.operator.type == TokenType.SLASH) {
+            checkDenominator(binary.operator, b);
+        }
+
+        switch(binary.operator.type) {
+            case MINUS: return a - b;
+            case SLASH: return a / b;
+            default: return a * b;
+        }
+    }
+
     @Override
     public Object visitCallExpr(Expr.Call expr) {
+        if(expr.callee instanceof Expr.Get) {
+            return invoke((Expr.Get)expr.callee, expr);
+        }
+
         Object callee = evaluate(expr.callee);
 
-        List<Object> arguments = new ArrayList<>();
-        for(Expr argument : expr.arguments) {
-            arguments.add(evaluate(argument));
+        int count = expr.arguments.size();
+        Object[] arguments = frameFor(callee, count);
+        evaluateArguments(expr.arguments, arguments);
+
+        return call(callee, arguments, count, expr.paren);
+    }
+
+    // object.name(...): a method is run without binding it first.
+    private Object invoke(Expr.Get get, Expr.Call expr) {
+        Object object = evaluate(get.object);
+        LoxFunction method = method(object, expr);
+        Object callee = method == null ? getProperty(object, get) : method;
+
+        int count = expr.arguments.size();
+        Object[] arguments = frameFor(callee, count);
+        evaluateArguments(expr.arguments, arguments);
+
+        if(method == null) return call(callee, arguments, count, expr.paren);
+        return invoke(method, (LoxInstance)object, arguments, count,
+                      expr.paren);
+    }
+
+    // The array a call with count arguments evaluates them into: the
+    // callee's frame, unless the call is going to fail once they have
+    // been evaluated.
+    static Object[] frameFor(Object callee, int count) {
+        if(callee instanceof LoxCallable) {
+            LoxCallable function = (LoxCallable)callee;
+            if(function.arity() == count) return function.frame();
+        }
+
+        return count == 0 ? EMPTY_FRAME : new Object[count];
+    }
+
+    private void evaluateArguments(List<Expr> arguments, Object[] frame) {
+        for(int i = 0; i < arguments.size(); ++i) {
+            frame[i] = evaluate(arguments.get(i));
         }
+    }
+
+    // The method a call of a property on object runs, or null if the
+    // property is not a method.
+    LoxFunction method(Object object, Expr.Call expr) {
+        if(!(object instanceof LoxInstance)) return null;
+
+        Token name = ((Expr.Get)expr.callee).name;
+        return expr.methods.lookup((LoxInstance)object, name);
+    }
 
+    Object invoke(LoxFunction method, LoxInstance object,
+                  Object[] arguments, int count, Token paren) {
+        checkArity(method, count, paren);
+        return method.invoke(this, object, arguments);
+    }
+
+    // arguments comes from frameFor(callee, count).
+    Object call(Object callee, Object[] arguments, int count, Token paren) {
         if(!(callee instanceof LoxCallable)) {
-            throw new RuntimeError(expr.paren,
+            throw new RuntimeError(paren,
         "Can only call functions and classes.");
         }
 
         LoxCallable function = (LoxCallable)callee;
+        checkArity(function, count, paren);
+        return function.call(this, arguments);
+    }
 
-        if(arguments.size() != function.arity()) {
-            throw new RuntimeError(expr.paren, "Expected " +
+    private static void checkArity(LoxCallable function, int count,
+                                   Token paren) {
+        if(count != function.arity()) {
+            throw new RuntimeError(paren, "Expected " +
                 function.arity() + " arguments but got " +
-                    arguments.size() + ".");
+                    count + ".");
         }
-
-        return function.call(this, arguments);
     }
 
     @Override
     public Object visitFunctionExpr(Expr.Function expr) {
-        LoxFunction function = new LoxFunction(expr, environment,
-                                      false);
-        if(expr.name != null) environment.define(expr.name.lexeme, function);
+        if(expr.name != null) declare(expr.access, expr.slot, expr.captured);
+        LoxFunction function = new LoxFunction(expr,
+                                      capture(expr.upvalues), false, null);
+        if(expr.name != null) {
+            define(expr.access, expr.slot, expr.captured, function);
+        }
         return function;
     }
 
     @Override
     public Object visitGetExpr(Expr.Get expr) {
-        Object object = evaluate(expr.object);
+        return getProperty(evaluate(expr.object), expr);
+    }
+
+    Object getProperty(Object object, Expr.Get expr) {
         if(object instanceof LoxInstance) {
-            return ((LoxInstance) object).get(expr.name);
+            return expr.cache.get((LoxInstance)object, expr.name);
         }
 
         throw new RuntimeError(expr.name,
@@ -274,27 +559,38 @@ class Interpreter
 
     @Override
     public Object visitSetExpr(Expr.Set expr) {
-        Object object = evaluate(expr.object);
+        LoxInstance object = checkInstance(evaluate(expr.object), expr);
 
+        Object value = evaluate(expr.value);
+        return setProperty(object, value, expr);
+    }
+
+    LoxInstance checkInstance(Object object, Expr.Set expr) {
         if(!(object instanceof LoxInstance)) {
             throw new RuntimeError(expr.name,
                                    "Only instances have fields.");
         }
 
-        Object value = evaluate(expr.value);
-        ((LoxInstance)object).set(expr.name, value);
+        return (LoxInstance)object;
+    }
+
+    Object setProperty(LoxInstance object, Object value, Expr.Set expr) {
+        expr.cache.set(object, expr.name, value);
         return value;
     }
 
     @Override
     public Object visitSuperExpr(Expr.Super expr) {
-        int distance = locals.get(expr);
-        LoxClass superclass = (LoxClass)environment.getAt(
-            distance, "super");
+        LoxClass superclass = (LoxClass)lookUpVariable(
+            expr.keyword, expr.access, expr.slot);
+        LoxInstance object = (LoxInstance)lookUpVariable(
+            expr.keyword, expr.thisAccess, expr.thisSlot);
 
-        LoxInstance object = (LoxInstance)environment.getAt(
-            distance-1, "this");
+        return superMethod(superclass, object, expr);
+    }
 
+    Object superMethod(LoxClass superclass, LoxInstance object,
+                       Expr.Super expr) {
         LoxFunction method = superclass.findMethod(expr.method.lexeme);
 
         if (method == null) {
@@ -315,11 +611,13 @@ class Interpreter
 
     @Override
     public Object visitThisExpr(Expr.This expr) {
-        return lookUpVariable(expr.keyword, expr);
+        return lookUpVariable(expr.keyword, expr.access, expr.slot);
     }
 
     @Override
     public Object visitUnaryExpr(Expr.Unary expr) {
+        if(isArithmetic(expr)) return box(evaluateNumber(expr));
+
         Object right = evaluate(expr.right);
 
         switch(expr.operator.type) {
@@ -327,7 +625,7 @@ class Interpreter
                 return !isTruthy(right);
             case MINUS:
                 checkNumberOperand(expr.operator, right);
-                return -(double)right;
+                return box(-(double)right);
             default: break;
         }
 
@@ -339,7 +637,7 @@ class Interpreter
     public Object visitVariableExpr(Expr.Variable expr) {
         // Before name resolver
 //        Object val = environment.get(expr.name);
-        Object val = lookUpVariable(expr.name, expr);
+        Object val = lookUpVariable(expr.name, expr.access, expr.slot);
 
         if(unassigned.equals(val)) return null;
         return val;
@@ -347,16 +645,16 @@ class Interpreter
         //     "Use of variable before assignment.");
     }
 
-    // Stmt.Visitor<Void>
+    // Stmt.Visitor<Completion>
 
     @Override
-    public Void visitBlockStmt(Stmt.Block stmt) {
-        executeBlock(stmt.statements, new Environment(environment));
-        return null;
+    public Completion visitBlockStmt(Stmt.Block stmt) {
+        // Block locals have slots in the function's frame.
+        return executeBlock(stmt.statements);
     }
 
     @Override
-    public Void visitClassStmt(Stmt.Class stmt) {
+    public Completion visitClassStmt(Stmt.Class stmt) {
         Object superclass = null;
         if(stmt.superclass != null) {
             superclass = evaluate(stmt.superclass);
@@ -366,44 +664,49 @@ class Interpreter
             }
         }
 
-        environment.define(stmt.name.lexeme, null);
+        declare(stmt.access, stmt.slot, stmt.captured);
+        define(stmt.access, stmt.slot, stmt.captured, null);
 
+        // Methods that use "super" capture it.
         if (stmt.superclass != null) {
-            environment = new Environment(environment);
-            environment.define("super", superclass);
+            frame[stmt.superSlot] = new Cell(superclass);
         }
 
         Map<String, LoxFunction> methods = new HashMap<>();
         for (Expr.Function method : stmt.methods) {
             LoxFunction function =
                     new LoxFunction(method,
-                                    environment,
-                                    method.name.lexeme.equals("init"));
+                                    capture(method.upvalues),
+                                    method.name.lexeme.equals("init"),
+                                    stmt.name.lexeme);
             methods.put(method.name.lexeme, function);
         }
 
         LoxClass klass = new LoxClass(stmt.name.lexeme,
                 (LoxClass)superclass, methods);
 
-        if (superclass != null) {
-            environment = environment.enclosing;
-        }
-
-        environment.assign(stmt.name, klass);
+        define(stmt.access, stmt.slot, stmt.captured, klass);
 
-        return null;
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitReturnStmt(Stmt.Return stmt) {
+    public Completion visitReturnStmt(Stmt.Return stmt) {
+        switch(stmt.keyword.type) {
+            case BREAK: return Completion.BREAK;
+            case CONTINUE: return Completion.CONTINUE;
+            default: break;
+        }
+
         Object value = null;
         if(stmt.value != null) value = evaluate(stmt.value);
 
-        throw new Return(stmt.keyword, value);
+        returnValue = value;
+        return Completion.RETURN;
     }
 
     @Override
-    public Void visitExpressionStmt(Stmt.Expression stmt) {
+    public Completion visitExpressionStmt(Stmt.Expression stmt) {
 //        Object exprVal =
         evaluate(stmt.expression);
 
@@ -411,39 +714,60 @@ class Interpreter
 //            String text = stringify(exprVal);
 //            if(exprVal instanceof String) text = "'" + text + "'";
 //            System.out.println(text);
-        return null;
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitFunctionStmt(Stmt.Function stmt) {
-        LoxFunction function = new LoxFunction(stmt, environment,
-                false);
-        environment.define(stmt.name.lexeme, function);
-        return null;
+    public Completion visitForStmt(Stmt.For stmt) {
+        // The loop variable has one slot, or one Cell if a closure
+        // captures it, for every iteration.
+        if(stmt.initializer != null) execute(stmt.initializer);
+
+        while(stmt.condition == null || isTruthy(evaluate(stmt.condition))) {
+            Completion completion = execute(stmt.body);
+            if(completion == Completion.BREAK) break;
+            if(completion == Completion.RETURN) return completion;
+            // continue goes on to the increment.
+            if(stmt.increment != null) evaluate(stmt.increment);
+        }
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitIfStmt(Stmt.If stmt) {
+    public Completion visitFunctionStmt(Stmt.Function stmt) {
+        declare(stmt.access, stmt.slot, stmt.captured);
+        LoxFunction function = new LoxFunction(stmt,
+                capture(stmt.upvalues), false);
+        define(stmt.access, stmt.slot, stmt.captured, function);
+        return Completion.NORMAL;
+    }
+
+    @Override
+    public Completion visitIfStmt(Stmt.If stmt) {
         if(isTruthy(evaluate(stmt.condition))) {
-            execute(stmt.thenBranch);
+            return execute(stmt.thenBranch);
         } else if(stmt.elseBranch != null) {
-            execute(stmt.elseBranch);
+            return execute(stmt.elseBranch);
         }
 
-        return null;
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitPrintStmt(Stmt.Print stmt) {
-        Object value = evaluate(stmt.expression);
-        System.out.println(stringify(value));
-        return null;
+    public Completion visitPrintStmt(Stmt.Print stmt) {
+        print(evaluate(stmt.expression));
+        return Completion.NORMAL;
+    }
+
+    void print(Object value) {
+        out.println(stringify(value));
     }
 
     @Override
-    public Void visitVarStmt(Stmt.Var stmt) {
+    public Completion visitVarStmt(Stmt.Var stmt) {
         Token name = stmt.name;
         Object value = unassigned;
+        declare(stmt.access, stmt.slot, stmt.captured);
         if(stmt.initializer != null) {
             value = evaluate(stmt.initializer);
 
@@ -452,15 +776,17 @@ class Interpreter
             }
         }
 
-        environment.define(stmt.name.lexeme, value);
-        return null;
+        define(stmt.access, stmt.slot, stmt.captured, value);
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitWhileStmt(Stmt.While stmt) {
+    public Completion visitWhileStmt(Stmt.While stmt) {
         while(isTruthy(evaluate(stmt.condition))) {
-            execute(stmt.body);
+            Completion completion = execute(stmt.body);
+            if(completion == Completion.BREAK) break;
+            if(completion == Completion.RETURN) return completion;
         }
-        return null;
+        return Completion.NORMAL;
     }
 }
@@ -0,0 +1,1030 @@
+package com.craftinginterpreters.lox;
+
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.craftinginterpreters.lox.ClassFile.*;
+
+// Second tier for hot LoxFunctions: translates the function's body into a
+// JVM class, defined as a hidden class, so HotSpot compiles straight-line
+// code instead of a chain of visitor calls.
+//
+// Only a subset of Lox is translated. Bodies that declare functions or
+// classes stay in the Interpreter.
+//
+// Parameters that have only ever been passed numbers are assumed to stay
+// numbers, and live in unboxed double locals. A call that breaks the
+// assumption deoptimizes: the compiled code returns DEOPT before it has
+// done anything, the Interpreter runs the call, and the function gets
+// recompiled later without the assumption.
+final class Jit {
+    static final int THRESHOLD = 1000;
+
+    // Returned by compiled code whose assumptions did not hold.
+    static final Object DEOPT = new Object();
+
+    interface Code {
+        Object call(Interpreter interpreter, Cell[] upvalues,
+                    LoxInstance receiver, Object[] frame);
+    }
+
+    // Per-function state, shared by every closure of the same declaration.
+    static class Profile {
+        int calls = 0;
+        Code code = null;
+        boolean failed = false;
+        // Parameters that have been passed something other than a number.
+        boolean[] notNumber = null;
+    }
+
+    // The arguments are the first arity slots of frame.
+    static void record(Profile profile, Object[] frame, int arity) {
+        if(profile.notNumber == null) {
+            profile.notNumber = new boolean[arity];
+        }
+
+        for(int i = 0; i < arity; ++i) {
+            if(!(frame[i] instanceof Double)) {
+                profile.notNumber[i] = true;
+            }
+        }
+    }
+
+    static void deoptimize(Profile profile, Object[] frame, int arity) {
+        record(profile, frame, arity);
+        profile.code = null;
+        profile.calls = 0;
+    }
+
+    static void compile(Profile profile, boolean isMethod,
+                        List<Token> params, List<Stmt> body,
+                        int frameSize) {
+        try {
+            profile.code = new Translator(profile, isMethod, params,
+                                          frameSize).translate(body);
+        } catch(Unsupported | IllegalStateException error) {
+            profile.failed = true;
+        }
+    }
+
+    private static class Unsupported extends RuntimeException {
+        Unsupported() {
+            super(null, null, false, false);
+        }
+    }
+
+    // Helpers called by the compiled code. Anything not worth inlining
+    // into the generated class goes through the Interpreter, so both tiers
+    // behave the same.
+
+    static Object upvalue(Cell[] upvalues, int slot) {
+        Object value = upvalues[slot].value;
+        return value == Interpreter.unassigned ? null : value;
+    }
+
+    static Object global(Interpreter interpreter, int slot, Token name) {
+        Object value = interpreter.globals.get(slot, name);
+        return value == Interpreter.unassigned ? null : value;
+    }
+
+    static Object assignUpvalue(Object value, Cell[] upvalues, int slot) {
+        upvalues[slot].value = value;
+        return value;
+    }
+
+    static Object assignGlobal(Object value, Interpreter interpreter,
+                               int slot, Token name) {
+        interpreter.globals.assign(slot, name, value);
+        return value;
+    }
+
+    static Object named(Object value, Token name) {
+        if(value instanceof LoxFunction) {
+            ((LoxFunction)value).define(name);
+        }
+        return value;
+    }
+
+    static Object[] frame(Object callee, int count) {
+        return Interpreter.frameFor(callee, count);
+    }
+
+    static Object[] frame(LoxFunction method, Object callee, int count) {
+        return Interpreter.frameFor(method != null ? method : callee, count);
+    }
+
+    static Object call(Object callee, Object[] arguments, int count,
+                       Interpreter interpreter, Token paren) {
+        return interpreter.call(callee, arguments, count, paren);
+    }
+
+    static LoxFunction method(Object object, Interpreter interpreter,
+                              Expr.Call expr) {
+        return interpreter.method(object, expr);
+    }
+
+    // The callee of a property call that isn't a method.
+    static Object property(Object object, LoxFunction method,
+                           Interpreter interpreter, Expr.Get expr) {
+        if(method != null) return null;
+        return interpreter.getProperty(object, expr);
+    }
+
+    static Object invoke(Object object, LoxFunction method, Object callee,
+                         Object[] arguments, int count,
+                         Interpreter interpreter, Token paren) {
+        if(method == null) {
+            return interpreter.call(callee, arguments, count, paren);
+        }
+        return interpreter.invoke(method, (LoxInstance)object, arguments,
+                                  count, paren);
+    }
+
+    static Object get(Object object, Interpreter interpreter,
+                      Expr.Get expr) {
+        return interpreter.getProperty(object, expr);
+    }
+
+    static LoxInstance checkInstance(Object object, Interpreter interpreter,
+                                     Expr.Set expr) {
+        return interpreter.checkInstance(object, expr);
+    }
+
+    static Object set(LoxInstance object, Object value,
+                      Interpreter interpreter, Expr.Set expr) {
+        return interpreter.setProperty(object, value, expr);
+    }
+
+    static Object superMethod(Interpreter interpreter, Object superclass,
+                              Object object, Expr.Super expr) {
+        return interpreter.superMethod((LoxClass)superclass,
+                                       (LoxInstance)object, expr);
+    }
+
+    static Object box(double value) {
+        return Interpreter.box(value);
+    }
+
+    static boolean isTruthy(Object object) {
+        return Interpreter.isTruthy(object);
+    }
+
+    static boolean equals(Object a, Object b) {
+        return Interpreter.isEqual(a, b);
+    }
+
+    static boolean equals(double a, double b) {
+        // Same as Double.equals(): NaN is equal to itself.
+        return Double.compare(a, b) == 0;
+    }
+
+    static Object add(Object a, Object b, Token operator) {
+        return Interpreter.add(a, b, operator);
+    }
+
+    static double subtract(Object a, Object b, Token operator) {
+        Interpreter.checkNumberOperands(operator, a, b);
+        return (double)a - (double)b;
+    }
+
+    static double multiply(Object a, Object b, Token operator) {
+        Interpreter.checkNumberOperands(operator, a, b);
+        return (double)a * (double)b;
+    }
+
+    static double divide(Object a, Object b, Token operator) {
+        Interpreter.checkNumberOperands(operator, a, b);
+        return (double)a / (double)b;
+    }
+
+    static double divide(double a, double b, Token operator) {
+        Interpreter.checkDenominator(operator, b);
+        return a / b;
+    }
+
+    static double negate(Object a, Token operator) {
+        Interpreter.checkNumberOperand(operator, a);
+        return -(double)a;
+    }
+
+    static boolean greater(Object a, Object b, Token operator) {
+        Interpreter.checkNumberOperands(operator, a, b);
+        return (double)a > (double)b;
+    }
+
+    static boolean greaterEqual(Object a, Object b, Token operator) {
+        Interpreter.checkNumberOperands(operator, a, b);
+        return (double)a >= (double)b;
+    }
+
+    static boolean less(Object a, Object b, Token operator) {
+        Interpreter.checkNumberOperands(operator, a, b);
+        return (double)a < (double)b;
+    }
+
+    static boolean lessEqual(Object a, Object b, Token operator) {
+        Interpreter.checkNumberOperands(operator, a, b);
+        return (double)a <= (double)b;
+    }
+
+    private enum Type { NUMBER, BOOLEAN, OBJECT }
+
+    private static class Local {
+        Type type;
+        int index;
+
+        Local(Type type) {
+            this.type = type;
+        }
+    }
+
+    private static final String JIT = "com/craftinginterpreters/lox/Jit";
+    private static final String CODE = "com/craftinginterpreters/lox/Jit$Code";
+    private static final String GENERATED =
+            "com/craftinginterpreters/lox/JitCode";
+
+    private static final String OBJECT = "Ljava/lang/Object;";
+    private static final String TOKEN = "Lcom/craftinginterpreters/lox/Token;";
+    private static final String INTERPRETER =
+            "Lcom/craftinginterpreters/lox/Interpreter;";
+    private static final String CELLS =
+            "[Lcom/craftinginterpreters/lox/Cell;";
+    private static final String INSTANCE =
+            "Lcom/craftinginterpreters/lox/LoxInstance;";
+    private static final String CALL = "(" + INTERPRETER + CELLS +
+            INSTANCE + "[" + OBJECT + ")" + OBJECT;
+
+    // JVM locals of the generated call() method.
+    private static final int THIS = 0;
+    private static final int INTERPRETER_LOCAL = 1;
+    private static final int UPVALUES = 2;
+    private static final int RECEIVER = 3;
+    private static final int FRAME = 4;
+
+    // Translation starts by typing each local after its initializer and
+    // generating code. An assignment of another type demotes the local to
+    // OBJECT, and the body is generated again until no local changes.
+    private static class Translator
+            implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+        private final Profile profile;
+        private final boolean isMethod;
+        private final List<Token> params;
+        private final int frameSize;
+        private final Map<Object, Local> locals = new IdentityHashMap<>();
+
+        private ClassFile file;
+        private ClassFile.Code code;
+        // The local each slot of the Interpreter's frame holds at this
+        // point of the body. Blocks reuse slots, as in the Resolver.
+        private Local[] frame;
+        private List<Object> constants;
+        private int nextLocal;
+        private boolean changed;
+        // Where break and continue in the innermost loop jump to.
+        private ClassFile.Label breakTarget;
+        private ClassFile.Label continueTarget;
+
+        Translator(Profile profile, boolean isMethod, List<Token> params,
+                   int frameSize) {
+            this.profile = profile;
+            this.isMethod = isMethod;
+            this.params = params;
+            this.frameSize = frameSize;
+        }
+
+        Code translate(List<Stmt> body) {
+            byte[] bytes;
+            do {
+                changed = false;
+                bytes = generate(body);
+            } while(changed);
+
+            try {
+                Class<?> generated = MethodHandles.lookup()
+                        .defineHiddenClass(bytes, true).lookupClass();
+                return (Code)generated.getConstructor(Object[].class)
+                        .newInstance((Object)constants.toArray());
+            } catch(ReflectiveOperationException error) {
+                throw new IllegalStateException(error);
+            }
+        }
+
+        private byte[] generate(List<Stmt> body) {
+            file = new ClassFile(GENERATED, "java/lang/Object");
+            file.addInterface(CODE);
+            file.addField(ACC_PRIVATE | ACC_FINAL, "constants",
+                          "[" + OBJECT);
+            constants = new ArrayList<>();
+
+            ClassFile.Code init = file.addMethod(ACC_PUBLIC, "<init>",
+                    "([" + OBJECT + ")V", 2);
+            init.local(ALOAD, 0, 1);
+            init.ref(INVOKESPECIAL,
+                     file.methodRef("java/lang/Object", "<init>", "()V"), -1);
+            init.local(ALOAD, 0, 1);
+            init.local(ALOAD, 1, 1);
+            init.ref(PUTFIELD,
+                     file.fieldRef(GENERATED, "constants", "[" + OBJECT), -2);
+            init.op(RETURN, 0);
+            init.finish();
+
+            code = file.addMethod(ACC_PUBLIC, "call", CALL, 5);
+            nextLocal = 5;
+            frame = new Local[frameSize];
+            ClassFile.Label deopt = code.label();
+            boolean guarded = false;
+            for(int i = 0; i < params.size(); ++i) {
+                Local local = locals.get(params.get(i));
+                if(local == null) {
+                    boolean number = !profile.notNumber[i];
+                    local = new Local(number ? Type.NUMBER : Type.OBJECT);
+                    locals.put(params.get(i), local);
+                }
+
+                code.local(ALOAD, FRAME, 1);
+                code.push(i);
+                code.op(AALOAD, -1);
+                if(local.type == Type.NUMBER) {
+                    code.op(DUP, 1);
+                    code.ref(INSTANCEOF, file.classRef("java/lang/Double"), 0);
+                    code.jump(IFEQ, deopt, -1);
+                    unbox();
+                    guarded = true;
+                }
+                declare(local, i);
+            }
+
+            // The receiver's slot follows the parameters'.
+            if(isMethod) {
+                code.local(ALOAD, RECEIVER, 1);
+                declare(new Local(Type.OBJECT), params.size());
+            }
+
+            for(Stmt statement : body) {
+                statement.accept(this);
+            }
+
+            code.op(ACONST_NULL, 1);
+            code.op(ARETURN, -1);
+
+            if(guarded) {
+                code.mark(deopt);
+                code.op(POP, -1);
+                getStatic("DEOPT", OBJECT);
+                code.op(ARETURN, -1);
+            }
+
+            code.finish();
+            return file.toByteArray();
+        }
+
+        private void declare(Local local, int slot) {
+            local.index = nextLocal;
+            nextLocal += local.type == Type.NUMBER ? 2 : 1;
+            store(local);
+            frame[slot] = local;
+        }
+
+        // The local a resolved variable refers to, or null when it lives
+        // outside this function.
+        private Local lookup(Resolver.Access access, int slot) {
+            if(access != Resolver.Access.LOCAL) return null;
+            if(frame[slot] == null) throw new Unsupported();
+            return frame[slot];
+        }
+
+        private Type typeOf(Expr expr) {
+            if(expr instanceof Expr.Literal) {
+                Object value = ((Expr.Literal)expr).value;
+                if(value instanceof Double) return Type.NUMBER;
+                if(value instanceof Boolean) return Type.BOOLEAN;
+                return Type.OBJECT;
+            }
+
+            if(expr instanceof Expr.Grouping) {
+                return typeOf(((Expr.Grouping)expr).expression);
+            }
+
+            if(expr instanceof Expr.Variable) {
+                Expr.Variable variable = (Expr.Variable)expr;
+                Local local = lookup(variable.access, variable.slot);
+                return local != null ? local.type : Type.OBJECT;
+            }
+
+            if(expr instanceof Expr.Assign) {
+                Expr.Assign assign = (Expr.Assign)expr;
+                Local local = lookup(assign.access, assign.slot);
+                return local != null ? local.type : Type.OBJECT;
+            }
+
+            if(expr instanceof Expr.Unary) {
+                Expr.Unary unary = (Expr.Unary)expr;
+                return unary.operator.type == TokenType.BANG
+                        ? Type.BOOLEAN : Type.NUMBER;
+            }
+
+            if(expr instanceof Expr.Binary) {
+                Expr.Binary binary = (Expr.Binary)expr;
+                switch(binary.operator.type) {
+                    case COMMA:
+                        return typeOf(binary.right);
+                    case PLUS:
+                        return bothNumbers(binary)
+                                ? Type.NUMBER : Type.OBJECT;
+                    case MINUS:
+                    case STAR:
+                    case SLASH:
+                        return Type.NUMBER;
+                    default:
+                        return Type.BOOLEAN;
+                }
+            }
+
+            if(expr instanceof Expr.Ternary) {
+                Expr.Ternary ternary = (Expr.Ternary)expr;
+                Type second = typeOf(ternary.second);
+                return second == typeOf(ternary.third)
+                        ? second : Type.OBJECT;
+            }
+
+            return Type.OBJECT;
+        }
+
+        private boolean bothNumbers(Expr.Binary expr) {
+            return typeOf(expr.left) == Type.NUMBER &&
+                    typeOf(expr.right) == Type.NUMBER;
+        }
+
+        // Emits expr and converts its value to the given type.
+        private void emit(Expr expr, Type as) {
+            Type type = typeOf(expr);
+            expr.accept(this);
+            if(type == as) return;
+
+            if(as == Type.OBJECT && type == Type.NUMBER) {
+                invokeJit("box", "(D)" + OBJECT, -1);
+            } else if(as == Type.OBJECT && type == Type.BOOLEAN) {
+                invokeStatic("java/lang/Boolean", "valueOf",
+                             "(Z)Ljava/lang/Boolean;", 0);
+            } else if(!changed) {
+                // Types can only disagree while they are still settling.
+                throw new IllegalStateException("Mistyped " + expr + ".");
+            }
+        }
+
+        private void condition(Expr expr) {
+            Type type = typeOf(expr);
+            if(type == Type.BOOLEAN) {
+                emit(expr, Type.BOOLEAN);
+            } else if(type == Type.NUMBER) {
+                emit(expr, Type.NUMBER);
+                code.op(POP2, -2);
+                code.op(ICONST_1, 1);
+            } else {
+                emit(expr, Type.OBJECT);
+                invokeJit("isTruthy", "(" + OBJECT + ")Z", 0);
+            }
+        }
+
+        private void discard(Type type) {
+            if(type == Type.NUMBER) {
+                code.op(POP2, -2);
+            } else {
+                code.op(POP, -1);
+            }
+        }
+
+        private void load(Local local) {
+            switch(local.type) {
+                case NUMBER: code.local(DLOAD, local.index, 2); break;
+                case BOOLEAN: code.local(ILOAD, local.index, 1); break;
+                default: code.local(ALOAD, local.index, 1); break;
+            }
+        }
+
+        private void store(Local local) {
+            switch(local.type) {
+                case NUMBER: code.local(DSTORE, local.index, -2); break;
+                case BOOLEAN: code.local(ISTORE, local.index, -1); break;
+                default: code.local(ASTORE, local.index, -1); break;
+            }
+        }
+
+        private void unbox() {
+            code.ref(CHECKCAST, file.classRef("java/lang/Double"), 0);
+            code.ref(INVOKEVIRTUAL, file.methodRef("java/lang/Double",
+                    "doubleValue", "()D"), 1);
+        }
+
+        // Pushes an object the generated code cannot refer to directly,
+        // like a Token or an AST node, from the class's constant array.
+        private void constant(Object value, String type) {
+            code.local(ALOAD, THIS, 1);
+            code.ref(GETFIELD,
+                     file.fieldRef(GENERATED, "constants", "[" + OBJECT), 0);
+            code.push(constants.size());
+            code.op(AALOAD, -1);
+            code.ref(CHECKCAST, file.classRef(
+                    type.substring(1, type.length() - 1)), 0);
+            constants.add(value);
+        }
+
+        private void getStatic(String name, String descriptor) {
+            code.ref(GETSTATIC, file.fieldRef(JIT, name, descriptor), 1);
+        }
+
+        private void invokeStatic(String owner, String name,
+                                  String descriptor, int delta) {
+            code.ref(INVOKESTATIC,
+                     file.methodRef(owner, name, descriptor), delta);
+        }
+
+        private void invokeJit(String name, String descriptor, int delta) {
+            invokeStatic(JIT, name, descriptor, delta);
+        }
+
+        private void named(Token name) {
+            constant(name, TOKEN);
+            invokeJit("named", "(" + OBJECT + TOKEN + ")" + OBJECT, -1);
+        }
+
+        // Expr.Visitor<Void>
+
+        @Override
+        public Void visitAssignExpr(Expr.Assign expr) {
+            Local local = lookup(expr.access, expr.slot);
+            if(local != null) {
+                if(local.type != Type.OBJECT &&
+                        local.type != typeOf(expr.value)) {
+                    local.type = Type.OBJECT;
+                    changed = true;
+                }
+
+                emit(expr.value, local.type);
+                if(local.type == Type.OBJECT) named(expr.name);
+                code.op(local.type == Type.NUMBER ? DUP2 : DUP,
+                        local.type == Type.NUMBER ? 2 : 1);
+                store(local);
+            } else if(expr.access == Resolver.Access.UPVALUE) {
+                emit(expr.value, Type.OBJECT);
+                named(expr.name);
+                code.local(ALOAD, UPVALUES, 1);
+                code.push(expr.slot);
+                invokeJit("assignUpvalue", "(" + OBJECT + CELLS + "I)" +
+                          OBJECT, -2);
+            } else {
+                emit(expr.value, Type.OBJECT);
+                named(expr.name);
+                code.local(ALOAD, INTERPRETER_LOCAL, 1);
+                code.push(expr.slot);
+                constant(expr.name, TOKEN);
+                invokeJit("assignGlobal", "(" + OBJECT + INTERPRETER +
+                          "I" + TOKEN + ")" + OBJECT, -3);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitBinaryExpr(Expr.Binary expr) {
+            boolean numbers = bothNumbers(expr);
+            Type operands = numbers ? Type.NUMBER : Type.OBJECT;
+            String generic = "(" + OBJECT + OBJECT + TOKEN + ")";
+
+            switch(expr.operator.type) {
+                case COMMA:
+                    Type left = typeOf(expr.left);
+                    emit(expr.left, left);
+                    discard(left);
+                    emit(expr.right, typeOf(expr.right));
+                    return null;
+
+                case BANG_EQUAL:
+                case EQUAL_EQUAL:
+                    emit(expr.left, operands);
+                    emit(expr.right, operands);
+                    if(numbers) {
+                        invokeJit("equals", "(DD)Z", -3);
+                    } else {
+                        invokeJit("equals", "(" + OBJECT + OBJECT + ")Z", -1);
+                    }
+                    if(expr.operator.type == TokenType.BANG_EQUAL) {
+                        code.op(ICONST_1, 1);
+                        code.op(IXOR, -1);
+                    }
+                    return null;
+            }
+
+            emit(expr.left, operands);
+            emit(expr.right, operands);
+
+            if(!numbers) {
+                constant(expr.operator, TOKEN);
+                switch(expr.operator.type) {
+                    case PLUS:
+                        invokeJit("add", generic + OBJECT, -2); break;
+                    case MINUS:
+                        invokeJit("subtract", generic + "D", -1); break;
+                    case STAR:
+                        invokeJit("multiply", generic + "D", -1); break;
+                    case SLASH:
+                        invokeJit("divide", generic + "D", -1); break;
+                    case GREATER:
+                        invokeJit("greater", generic + "Z", -2); break;
+                    case GREATER_EQUAL:
+                        invokeJit("greaterEqual", generic + "Z", -2); break;
+                    case LESS:
+                        invokeJit("less", generic + "Z", -2); break;
+                    case LESS_EQUAL:
+                        invokeJit("lessEqual", generic + "Z", -2); break;
+                    default:
+                        throw new Unsupported();
+                }
+                return null;
+            }
+
+            switch(expr.operator.type) {
+                case PLUS: code.op(DADD, -2); return null;
+                case MINUS: code.op(DSUB, -2); return null;
+                case STAR: code.op(DMUL, -2); return null;
+                case SLASH:
+                    constant(expr.operator, TOKEN);
+                    invokeJit("divide", "(DD" + TOKEN + ")D", -3);
+                    return null;
+                // NaN compares false, so each test branches on the
+                // comparison result that NaN also produces.
+                case GREATER: compare(DCMPL, IFLE); return null;
+                case GREATER_EQUAL: compare(DCMPL, IFLT); return null;
+                case LESS: compare(DCMPG, IFGE); return null;
+                case LESS_EQUAL: compare(DCMPG, IFGT); return null;
+                default:
+                    throw new Unsupported();
+            }
+        }
+
+        private void compare(int comparison, int ifFalse) {
+            ClassFile.Label otherwise = code.label();
+            ClassFile.Label end = code.label();
+            code.op(comparison, -3);
+            code.jump(ifFalse, otherwise, -1);
+            code.op(ICONST_1, 1);
+            code.jump(GOTO, end, 0);
+            code.mark(otherwise);
+            code.op(ICONST_0, 1);
+            code.mark(end);
+        }
+
+        @Override
+        public Void visitCallExpr(Expr.Call expr) {
+            if(expr.callee instanceof Expr.Get) {
+                invoke((Expr.Get)expr.callee, expr);
+                return null;
+            }
+
+            int count = expr.arguments.size();
+            emit(expr.callee, Type.OBJECT);
+            code.op(DUP, 1);
+            code.push(count);
+            invokeJit("frame", "(" + OBJECT + "I)[" + OBJECT, -1);
+            arguments(expr.arguments);
+            code.push(count);
+            code.local(ALOAD, INTERPRETER_LOCAL, 1);
+            constant(expr.paren, TOKEN);
+            invokeJit("call", "(" + OBJECT + "[" + OBJECT + "I" +
+                      INTERPRETER + TOKEN + ")" + OBJECT, -4);
+            return null;
+        }
+
+        // Leaves the object, the method or null, and the property if it
+        // isn't a method on the stack before the arguments.
+        private void invoke(Expr.Get get, Expr.Call expr) {
+            String call = "Lcom/craftinginterpreters/lox/Expr$Call;";
+            String getExpr = "Lcom/craftinginterpreters/lox/Expr$Get;";
+            String function = "Lcom/craftinginterpreters/lox/LoxFunction;";
+
+            emit(get.object, Type.OBJECT);
+            code.op(DUP, 1);
+            code.local(ALOAD, INTERPRETER_LOCAL, 1);
+            constant(expr, call);
+            invokeJit("method", "(" + OBJECT + INTERPRETER + call + ")" +
+                      function, -2);
+            code.op(DUP2, 2);
+            code.local(ALOAD, INTERPRETER_LOCAL, 1);
+            constant(get, getExpr);
+            invokeJit("property", "(" + OBJECT + function + INTERPRETER +
+                      getExpr + ")" + OBJECT, -3);
+            int count = expr.arguments.size();
+            code.op(DUP2, 2);
+            code.push(count);
+            invokeJit("frame", "(" + function + OBJECT + "I)[" + OBJECT, -2);
+            arguments(expr.arguments);
+            code.push(count);
+            code.local(ALOAD, INTERPRETER_LOCAL, 1);
+            constant(expr.paren, TOKEN);
+            invokeJit("invoke", "(" + OBJECT + function + OBJECT + "[" +
+                      OBJECT + "I" + INTERPRETER + TOKEN + ")" + OBJECT, -6);
+        }
+
+        // Evaluates the arguments into the array on top of the stack.
+        private void arguments(List<Expr> arguments) {
+            for(int i = 0; i < arguments.size(); ++i) {
+                code.op(DUP, 1);
+                code.push(i);
+                emit(arguments.get(i), Type.OBJECT);
+                code.op(AASTORE, -3);
+            }
+        }
+
+        @Override
+        public Void visitFunctionExpr(Expr.Function expr) {
+            throw new Unsupported();
+        }
+
+        @Override
+        public Void visitGetExpr(Expr.Get expr) {
+            emit(expr.object, Type.OBJECT);
+            code.local(ALOAD, INTERPRETER_LOCAL, 1);
+            constant(expr, "Lcom/craftinginterpreters/lox/Expr$Get;");
+            invokeJit("get", "(" + OBJECT + INTERPRETER +
+                      "Lcom/craftinginterpreters/lox/Expr$Get;)" + OBJECT, -2);
+            return null;
+        }
+
+        @Override
+        public Void visitGroupingExpr(Expr.Grouping expr) {
+            emit(expr.expression, typeOf(expr));
+            return null;
+        }
+
+        @Override
+        public Void visitLiteralExpr(Expr.Literal expr) {
+            Object value = expr.value;
+            if(value instanceof Double) {
+                code.constant(file.doubleConstant((double)value), 2);
+            } else if(value instanceof Boolean) {
+                code.op((boolean)value ? ICONST_1 : ICONST_0, 1);
+            } else if(value instanceof String) {
+                code.constant(file.string((String)value), 1);
+            } else {
+                code.op(ACONST_NULL, 1);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitLogicalExpr(Expr.Logical expr) {
+            ClassFile.Label end = code.label();
+            emit(expr.left, Type.OBJECT);
+            code.op(DUP, 1);
+            invokeJit("isTruthy", "(" + OBJECT + ")Z", 0);
+            code.jump(expr.operator.type == TokenType.OR ? IFNE : IFEQ,
+                      end, -1);
+            code.op(POP, -1);
+            emit(expr.right, Type.OBJECT);
+            code.mark(end);
+            return null;
+        }
+
+        @Override
+        public Void visitSetExpr(Expr.Set expr) {
+            String set = "Lcom/craftinginterpreters/lox/Expr$Set;";
+            emit(expr.object, Type.OBJECT);
+            code.local(ALOAD, INTERPRETER_LOCAL, 1);
+            constant(expr, set);
+            invokeJit("checkInstance", "(" + OBJECT + INTERPRETER + set +
+                      ")" + INSTANCE, -2);
+            emit(expr.value, Type.OBJECT);
+            code.local(ALOAD, INTERPRETER_LOCAL, 1);
+            constant(expr, set);
+            invokeJit("set", "(" + INSTANCE + OBJECT + INTERPRETER + set +
+                      ")" + OBJECT, -3);
+            return null;
+        }
+
+        @Override
+        public Void visitSuperExpr(Expr.Super expr) {
+            String superExpr = "Lcom/craftinginterpreters/lox/Expr$Super;";
+            code.local(ALOAD, INTERPRETER_LOCAL, 1);
+            loadVariable(expr.keyword, expr.access, expr.slot);
+            loadVariable(expr.keyword, expr.thisAccess, expr.thisSlot);
+            constant(expr, superExpr);
+            invokeJit("superMethod", "(" + INTERPRETER + OBJECT + OBJECT +
+                      superExpr + ")" + OBJECT, -3);
+            return null;
+        }
+
+        @Override
+        public Void visitTernaryExpr(Expr.Ternary expr) {
+            Type type = typeOf(expr);
+            ClassFile.Label otherwise = code.label();
+            ClassFile.Label end = code.label();
+            condition(expr.first);
+            code.jump(IFEQ, otherwise, -1);
+            emit(expr.second, type);
+            code.jump(GOTO, end, 0);
+            code.mark(otherwise);
+            emit(expr.third, type);
+            code.mark(end);
+            return null;
+        }
+
+        @Override
+        public Void visitThisExpr(Expr.This expr) {
+            loadVariable(expr.keyword, expr.access, expr.slot);
+            return null;
+        }
+
+        @Override
+        public Void visitUnaryExpr(Expr.Unary expr) {
+            if(expr.operator.type == TokenType.BANG) {
+                condition(expr.right);
+                code.op(ICONST_1, 1);
+                code.op(IXOR, -1);
+            } else if(typeOf(expr.right) == Type.NUMBER) {
+                emit(expr.right, Type.NUMBER);
+                code.op(DNEG, 0);
+            } else {
+                emit(expr.right, Type.OBJECT);
+                constant(expr.operator, TOKEN);
+                invokeJit("negate", "(" + OBJECT + TOKEN + ")D", 0);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitVariableExpr(Expr.Variable expr) {
+            loadVariable(expr.name, expr.access, expr.slot);
+            return null;
+        }
+
+        private void loadVariable(Token name, Resolver.Access access,
+                                  int slot) {
+            Local local = lookup(access, slot);
+            if(local != null) {
+                load(local);
+            } else if(access == Resolver.Access.UPVALUE) {
+                code.local(ALOAD, UPVALUES, 1);
+                code.push(slot);
+                invokeJit("upvalue", "(" + CELLS + "I)" + OBJECT, -1);
+            } else {
+                code.local(ALOAD, INTERPRETER_LOCAL, 1);
+                code.push(slot);
+                constant(name, TOKEN);
+                invokeJit("global", "(" + INTERPRETER + "I" + TOKEN + ")" +
+                          OBJECT, -2);
+            }
+        }
+
+        // Stmt.Visitor<Void>
+
+        @Override
+        public Void visitBlockStmt(Stmt.Block stmt) {
+            for(Stmt statement : stmt.statements) {
+                statement.accept(this);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitClassStmt(Stmt.Class stmt) {
+            throw new Unsupported();
+        }
+
+        @Override
+        public Void visitExpressionStmt(Stmt.Expression stmt) {
+            Type type = typeOf(stmt.expression);
+            emit(stmt.expression, type);
+            discard(type);
+            return null;
+        }
+
+        @Override
+        public Void visitForStmt(Stmt.For stmt) {
+            if(stmt.initializer != null) stmt.initializer.accept(this);
+
+            ClassFile.Label start = code.label();
+            ClassFile.Label next = code.label();
+            ClassFile.Label end = code.label();
+            code.mark(start);
+            if(stmt.condition != null) {
+                condition(stmt.condition);
+                code.jump(IFEQ, end, -1);
+            }
+            loopBody(stmt.body, end, next);
+            code.mark(next);
+            if(stmt.increment != null) {
+                Type type = typeOf(stmt.increment);
+                emit(stmt.increment, type);
+                discard(type);
+            }
+            code.jump(GOTO, start, 0);
+            code.mark(end);
+            return null;
+        }
+
+        private void loopBody(Stmt body, ClassFile.Label breakTarget,
+                              ClassFile.Label continueTarget) {
+            ClassFile.Label enclosingBreak = this.breakTarget;
+            ClassFile.Label enclosingContinue = this.continueTarget;
+            this.breakTarget = breakTarget;
+            this.continueTarget = continueTarget;
+            body.accept(this);
+            this.breakTarget = enclosingBreak;
+            this.continueTarget = enclosingContinue;
+        }
+
+        @Override
+        public Void visitFunctionStmt(Stmt.Function stmt) {
+            throw new Unsupported();
+        }
+
+        @Override
+        public Void visitIfStmt(Stmt.If stmt) {
+            ClassFile.Label otherwise = code.label();
+            ClassFile.Label end = code.label();
+            condition(stmt.condition);
+            code.jump(IFEQ, otherwise, -1);
+            stmt.thenBranch.accept(this);
+            code.jump(GOTO, end, 0);
+            code.mark(otherwise);
+            if(stmt.elseBranch != null) stmt.elseBranch.accept(this);
+            code.mark(end);
+            return null;
+        }
+
+        @Override
+        public Void visitPrintStmt(Stmt.Print stmt) {
+            code.local(ALOAD, INTERPRETER_LOCAL, 1);
+            emit(stmt.expression, Type.OBJECT);
+            code.ref(INVOKEVIRTUAL, file.methodRef(
+                    "com/craftinginterpreters/lox/Interpreter", "print",
+                    "(" + OBJECT + ")V"), -2);
+            return null;
+        }
+
+        @Override
+        public Void visitReturnStmt(Stmt.Return stmt) {
+            // break and continue are parsed as returns.
+            switch(stmt.keyword.type) {
+                case BREAK:
+                    code.jump(GOTO, breakTarget, 0);
+                    return null;
+                case CONTINUE:
+                    code.jump(GOTO, continueTarget, 0);
+                    return null;
+                default: break;
+            }
+
+            if(stmt.value != null) {
+                emit(stmt.value, Type.OBJECT);
+            } else {
+                code.op(ACONST_NULL, 1);
+            }
+            code.op(ARETURN, -1);
+            return null;
+        }
+
+        @Override
+        public Void visitVarStmt(Stmt.Var stmt) {
+            Type type = stmt.initializer != null
+                    ? typeOf(stmt.initializer) : Type.OBJECT;
+            Local local = locals.get(stmt);
+            if(local == null) {
+                local = new Local(type);
+                locals.put(stmt, local);
+            } else if(local.type != Type.OBJECT && local.type != type) {
+                local.type = Type.OBJECT;
+                changed = true;
+            }
+
+            // Only closures capture locals, and they aren't translated.
+            if(stmt.access != Resolver.Access.LOCAL || stmt.captured) {
+                throw new Unsupported();
+            }
+
+            if(stmt.initializer != null) {
+                emit(stmt.initializer, local.type);
+                if(local.type == Type.OBJECT) named(stmt.name);
+            } else {
+                code.op(ACONST_NULL, 1);
+            }
+            declare(local, stmt.slot);
+            return null;
+        }
+
+        @Override
+        public Void visitWhileStmt(Stmt.While stmt) {
+            ClassFile.Label start = code.label();
+            ClassFile.Label end = code.label();
+            code.mark(start);
+            condition(stmt.condition);
+            code.jump(IFEQ, end, -1);
+            loopBody(stmt.body, end, start);
+            code.jump(GOTO, start, 0);
+            code.mark(end);
+            return null;
+        }
+    }
+}
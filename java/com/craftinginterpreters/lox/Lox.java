@@ -3,102 +3,268 @@ package com.craftinginterpreters.lox;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 public class Lox {
-    private static final Interpreter interpreter = new Interpreter();
+    // Run programs on the bytecode VM instead of the tree-walker.
+    private static boolean useVm = false;
+    // Scan a script file in place from memory instead of reading it.
+    private static boolean mapSource = false;
+    // Where resolved script files are kept between runs, with --cache.
+    private static AstCache cache = null;
+    // Samples the running programs, with --profile.
+    private static Profiler profiler = null;
 
-    static boolean hadError = false;
-    static boolean hadRuntimeError = false;
+    // A program with the interpreter, or the VM, it runs on.
+    static class Program {
+        final ErrorReporter errors;
+        final Interpreter interpreter;
+        final VM vm;
+        // As resolved, which is what the cache keeps.
+        private List<Stmt> statements;
+        // What the interpreter runs, or the VM compiles: the statements,
+        // optimized.
+        private List<Stmt> optimized;
+        private Obj.Function script;
 
-    public static void main(String[] args) throws IOException {
-        if(args.length > 1) {
-            System.out.println("Usage: jlox [script]");
+        Program(ErrorReporter errors) {
+            this(errors, Output.stdout);
+        }
 
-            // <sysexits.h> EX_USAGE (64): The command was used incorrectly
-            System.exit(64);
-        } else if (args.length == 1) {
-            runFile(args[0]);
-        } else {
-            runPrompt();
+        // A program printing to out.
+        Program(ErrorReporter errors, Output out) {
+            this.errors = errors;
+            // The Resolver works on an Interpreter even for the VM.
+            this.interpreter = new Interpreter(errors, out);
+            this.interpreter.profiler = profiler;
+            this.vm = useVm ? new VM(errors, out) : null;
         }
-    }
 
-    private static void runFile(String path) throws IOException {
-        byte[] bytes = Files.readAllBytes(Paths.get(path));
-        run(new String(bytes, Charset.defaultCharset()));
+        // Scans, parses and resolves the program, stopping at the first
+        // stage with an error.
+        void load(TokenStream tokens) {
+            statements = new Parser(tokens, errors).parse();
 
-        // Indicate an error in the exit code.
+            // Stop if there was a syntax error, or the source couldn't be
+            // read to the end.
+            if(errors.hadError || errors.hadReadError) return;
+
+            new Resolver(interpreter).resolve(statements);
 
-        // <sysexits.h> EX_DATAERR (65)
-        // The input data was incorrect in some way.
-        if(hadError) System.exit(65);
+            // Stop if there was a resolution error.
+            if(errors.hadError) return;
+
+            compile();
+        }
+
+        // Statements already resolved for the interpreter.
+        void load(List<Stmt> statements) {
+            this.statements = statements;
+            compile();
+        }
+
+        private void compile() {
+            optimized = new Optimizer().optimize(statements);
+            if(vm == null) return;
+
+            // Errors if the program exceeds one of the VM's limits.
+            script = new Compiler(vm).compile(optimized);
+        }
 
-        // <sysexits.h> EX_SOFTWARE (70)
-        // An internal software error has been detected.
-        if(hadRuntimeError) System.exit(70);
+        void run() {
+            if(errors.hadError || errors.hadReadError) return;
+
+            if(vm != null) {
+                vm.interpret(script);
+            } else {
+                interpreter.interpret(optimized);
+            }
+        }
     }
 
-    // REPL prompt
-    private static void runPrompt() throws IOException {
-        InputStreamReader input = new InputStreamReader(System.in);
-        BufferedReader reader = new BufferedReader(input);
+    public static void main(String[] args) throws IOException {
+        int first = 0;
+        for(; first < args.length; ++first) {
+            if(args[first].equals("--vm")) {
+                useVm = true;
+            } else if(args[first].equals("--mmap")) {
+                mapSource = true;
+            } else if(args[first].equals("--cache")) {
+                cache = new AstCache(Paths.get(System.getProperty(
+                        "lox.cache", System.getProperty("user.home") +
+                                     "/.cache/jlox")));
+            } else if(args[first].equals("--profile")) {
+                profiler = new Profiler();
+            } else {
+                break;
+            }
+        }
 
-        for(;;) {
-            System.out.print("> ");
-            String line = reader.readLine();
+        if(profiler != null) profile(args.length - first == 0 ||
+                                     args[first].equals("--daemon"));
 
-            // Ctrl + D signals EOF and readLine() returns null
-            if (line == null) break;
-            run(line);
-            hadError = false;
+        if(args.length - first == 2 && args[first].equals("--daemon")) {
+            Daemon.serve(Paths.get(args[first + 1]));
+        } else if(args.length - first > 1) {
+            runBatch(Arrays.asList(args).subList(first, args.length));
+        } else if (args.length - first == 1) {
+            runFile(args[first]);
+        } else {
+            runPrompt();
         }
     }
 
-    private static void run(String source) {
-        Scanner scanner = new Scanner(source);
-        List<Token> tokens = scanner.scanTokens();
+    // The profiler follows the tree-walker running script files one at a
+    // time on this thread, and reports when Lox exits. The collapsed
+    // stacks go to the file lox.profile names.
+    private static void profile(boolean noScript) {
+        if(useVm || noScript) {
+            System.err.println(
+                    "Usage: jlox --profile [--mmap] [--cache] script...");
+
+            // <sysexits.h> EX_USAGE (64): The command was used incorrectly.
+            System.exit(64);
+        }
 
-        Parser parser = new Parser(tokens);
-        List<Stmt> statements = parser.parse();
+        Path folded = Paths.get(System.getProperty("lox.profile",
+                                                   "profile.folded"));
+        Runtime.getRuntime().addShutdownHook(new Thread(
+                () -> profiler.report(Output.stderr, folded)));
+        profiler.start();
+    }
 
-        // Stop if there was a syntax error.
-        if(hadError) return;
+    private static void runFile(String path) {
+        Program program = new Program(new ErrorReporter());
+        try {
+            try {
+                load(program, path);
+            } catch(IOException error) {
+                program.errors.unreadable(error);
+            }
+            program.run();
+        } finally {
+            Output.stdout.flush();
+        }
 
-        Resolver resolver = new Resolver(interpreter);
-        resolver.resolve(statements);
+        // Indicate an error in the exit code.
+        int exitCode = program.errors.exitCode();
+        if(exitCode != 0) System.exit(exitCode);
+    }
 
-        // Stop if there was a resolution error.
-        if(hadError) return;
+    // Runs each file as a program of its own, in order. Loading a file
+    // touches nothing another file's loading does, so the files after the
+    // one running are loaded in parallel, a few per thread of the pool so
+    // that loaded programs don't pile up. The exit code is the highest of
+    // the files'.
+    private static void runBatch(List<String> paths) {
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        int ahead = 4 * pool.getParallelism();
+        List<ForkJoinTask<Program>> loads = new ArrayList<>();
 
-        interpreter.interpret(statements);
+        int exitCode = 0;
+        for(int i = 0; i < paths.size(); ++i) {
+            while(loads.size() < paths.size() && loads.size() <= i + ahead) {
+                String path = paths.get(loads.size());
+                loads.add(pool.submit(() -> {
+                    Program program = new Program(new ErrorReporter(path));
+                    try {
+                        load(program, path);
+                    } catch(IOException error) {
+                        program.errors.unreadable(error);
+                    }
+                    return program;
+                }));
+            }
+
+            Program program = loads.get(i).join();
+            // Let it go once it has run.
+            loads.set(i, null);
+            program.errors.release();
+            program.run();
+            Output.stdout.flush();
+            exitCode = Math.max(exitCode, program.errors.exitCode());
+        }
+
+        if(exitCode != 0) System.exit(exitCode);
     }
 
-    static void error(int line, String message) {
-        report(line, "", message);
+    static void load(Program program, String path) throws IOException {
+        load(program, path, Charset.defaultCharset());
     }
 
-    static void error(Token token, String message) {
-        if(token.type == TokenType.EOF) {
-            report(token.line, " at end", message);
+    // A script file not mapped in is read in charset.
+    static void load(Program program, String path, Charset charset)
+            throws IOException {
+        Path file = Paths.get(path);
+        Path entry = null;
+        if(cache != null) {
+            entry = cache.entry(file);
+            List<Stmt> statements = cache.read(entry, program.interpreter);
+            if(statements != null) {
+                program.load(statements);
+                return;
+            }
+        }
+
+        if(mapSource) {
+            program.load(new Scanner(map(file), program.errors));
         } else {
-            report(token.line, " at '" + token.lexeme + "'", message);
+            // The Scanner reads the file as the Parser asks for tokens.
+            try(Reader reader = new InputStreamReader(
+                    Files.newInputStream(file), charset)) {
+                program.load(new Scanner(reader, program.errors));
+            }
+        }
+
+        if(entry != null && !program.errors.hadError &&
+                !program.errors.hadReadError) {
+            cache.write(entry, program.statements, program.interpreter);
         }
     }
 
-    static void runtimeError(RuntimeError error) {
-        System.err.println(error.getMessage() +
-            "\n[line " + error.token.line + "]");
-        hadRuntimeError = true;
+    // The file's pages are read in by the OS as the Scanner touches them.
+    // A mapped file is taken to be UTF-8.
+    static MappedByteBuffer map(Path path) throws IOException {
+        // Directories and devices can't be mapped, and say so only as "No
+        // such device".
+        if(Files.exists(path) && !Files.isRegularFile(path)) {
+            throw new IOException("Not a regular file: " + path);
+        }
+
+        try(FileChannel channel = FileChannel.open(path)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                               channel.size());
+        }
     }
 
-    private static void report(int line, String where, String message) {
-        System.err.println(
-                "[line " + line + "] Error" + where + ": " + message);
+    // REPL prompt
+    private static void runPrompt() throws IOException {
+        InputStreamReader input = new InputStreamReader(System.in);
+        BufferedReader reader = new BufferedReader(input);
+        // Each line runs on what the ones before it defined.
+        Program program = new Program(new ErrorReporter());
+
+        for(;;) {
+            Output.stdout.flush();
+            System.out.print("> ");
+            String line = reader.readLine();
 
-        hadError = true;
+            // Ctrl + D signals EOF and readLine() returns null
+            if (line == null) break;
+            program.load(new Scanner(line, program.errors));
+            program.run();
+            program.errors.hadError = false;
+        }
     }
 }
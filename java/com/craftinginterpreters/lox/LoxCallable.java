@@ -1,8 +1,15 @@
 package com.craftinginterpreters.lox;
 
-import java.util.List;
-
 interface LoxCallable {
     int arity();
-    Object call(Interpreter interpreter, List<Object> arguments);
+
+    // The array a call evaluates its arguments into, from index 0. A
+    // LoxFunction hands out the frame its body runs in, so arguments are
+    // never copied.
+    default Object[] frame() {
+        int arity = arity();
+        return arity == 0 ? Interpreter.EMPTY_FRAME : new Object[arity];
+    }
+
+    Object call(Interpreter interpreter, Object[] arguments);
 }
@@ -1,40 +1,42 @@
 package com.craftinginterpreters.lox;
 
-import java.util.List;
+import java.util.HashMap;
 import java.util.Map;
 
 class LoxClass implements LoxCallable {
     final String name;
     final LoxClass superclass;
-    private final Map<String, LoxFunction> methods;
+    // Inherited methods are copied in when the class is defined, so a
+    // lookup never walks the superclass chain.
+    private final Map<String, LoxFunction> methods = new HashMap<>();
+    private final LoxFunction initializer;
 
     LoxClass(String name, LoxClass superclass,
              Map<String, LoxFunction> methods) {
         this.superclass = superclass;
         this.name = name;
-        this.methods = methods;
+        if(superclass != null) this.methods.putAll(superclass.methods);
+        this.methods.putAll(methods);
+        this.initializer = findMethod("init");
     }
 
     LoxFunction findMethod(String name) {
-        if (methods.containsKey(name)) {
-            return methods.get(name);
-        }
-
-        if(superclass != null) {
-            return superclass.findMethod(name);
-        }
+        return methods.get(name);
+    }
 
-        return null;
+    // The arguments are evaluated straight into the initializer's frame.
+    @Override
+    public Object[] frame() {
+        if(initializer == null) return Interpreter.EMPTY_FRAME;
+        return initializer.frame();
     }
 
     @Override
-    public Object call(Interpreter interpreter,
-                       List<Object> arguments) {
-        LoxInstance instance = new LoxInstance(this);
+    public Object call(Interpreter interpreter, Object[] arguments) {
+        LoxInstance instance = new LoxInstance(this, interpreter.emptyShape);
 
-        LoxFunction initializer = findMethod("init");
         if(initializer != null) {
-            initializer.bind(instance).call(interpreter, arguments);
+            initializer.invoke(interpreter, instance, arguments);
         }
 
         return instance;
@@ -42,7 +44,6 @@ class LoxClass implements LoxCallable {
 
     @Override
     public int arity() {
-        LoxFunction initializer = findMethod("init");
         if(initializer == null) return 0;
         return initializer.arity();
     }
@@ -0,0 +1,99 @@
+package com.craftinginterpreters.lox;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.SocketException;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+
+// Runs a script on a Lox daemon (see Daemon) and prints what it prints,
+// exiting with its exit code, as running Lox on the script would. It
+// loads nothing of the interpreter, so it starts as fast as a JVM can,
+// and faster still with -XX:TieredStopAtLevel=1, since it runs too
+// briefly for C2 to pay off. Without a script, the source is read from
+// stdin.
+public class LoxClient {
+    public static void main(String[] args) throws IOException {
+        if(args.length < 1 || args.length > 2) {
+            System.err.println("Usage: loxclient <socket> [script]");
+
+            // <sysexits.h> EX_USAGE (64): The command was used incorrectly
+            System.exit(64);
+        }
+
+        byte kind;
+        String script;
+        if(args.length == 2) {
+            // The daemon's working directory isn't ours.
+            kind = Daemon.FILE;
+            script = Paths.get(args[1]).toAbsolutePath().toString();
+        } else {
+            kind = Daemon.SOURCE;
+            script = new String(System.in.readAllBytes(),
+                                Charset.defaultCharset());
+        }
+
+        try(SocketChannel channel = SocketChannel.open(
+                UnixDomainSocketAddress.of(args[0]))) {
+            DataOutputStream out = new DataOutputStream(
+                    Channels.newOutputStream(channel));
+            out.writeByte(kind);
+            // The daemon's charset isn't ours either.
+            if(kind == Daemon.FILE) {
+                string(out, Charset.defaultCharset().name());
+            }
+            string(out, script);
+            out.flush();
+
+            DataInputStream in = new DataInputStream(
+                    Channels.newInputStream(channel));
+            for(;;) {
+                byte frame = in.readByte();
+                if(frame == Daemon.EXIT) System.exit(in.readInt());
+
+                String text = string(in);
+                PrintStream stream =
+                        frame == Daemon.STDOUT ? System.out : System.err;
+                stream.print(text);
+                stream.flush();
+            }
+        } catch(EOFException error) {
+            System.err.println("The Lox daemon closed the connection.");
+
+            // <sysexits.h> EX_UNAVAILABLE (69): A service is unavailable.
+            System.exit(69);
+        } catch(SocketException error) {
+            System.err.println("No Lox daemon at " + args[0] + ": " +
+                               error.getMessage());
+
+            // <sysexits.h> EX_UNAVAILABLE (69): A service is unavailable.
+            System.exit(69);
+        }
+    }
+
+    // A frame's string, which the Daemon reads and writes here too.
+    static String string(DataInputStream in) throws IOException {
+        return string(in, in.readInt());
+    }
+
+    // The rest of a string whose length has been read.
+    static String string(DataInputStream in, int length) throws IOException {
+        byte[] utf8 = new byte[length];
+        in.readFully(utf8);
+        return new String(utf8, StandardCharsets.UTF_8);
+    }
+
+    static void string(DataOutputStream out, String string)
+            throws IOException {
+        byte[] utf8 = string.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(utf8.length);
+        out.write(utf8);
+    }
+}
@@ -6,33 +6,53 @@ class LoxFunction implements LoxCallable {
     private Token name;
     private final List<Token> params;
     private final List<Stmt> body;
-    private final Environment closure;
+    private final int frameSize;
+    private final int[] capturedParams;
+    private final Jit.Profile profile;
+    private final Cell[] upvalues;
     private final Boolean isInitializer;
+    // The instance a method was bound to, or null.
+    private final LoxInstance receiver;
+    // The class a method was declared in, or null.
+    private final String className;
 
-    LoxFunction(Stmt.Function declaration, Environment closure,
+    LoxFunction(Stmt.Function declaration, Cell[] upvalues,
             boolean isInitializer) {
-        this(declaration.name, declaration.params, declaration.body, closure, isInitializer);
+        this(declaration.name, declaration.params, declaration.body,
+             declaration.frameSize, declaration.capturedParams,
+             declaration.profile, upvalues, isInitializer, null, null);
     }
 
-    LoxFunction(Expr.Function declaration, Environment closure,
-            boolean isInitializer) {
-        this(declaration.name, declaration.params, declaration.body, closure, isInitializer);
+    // className is the class a method is declared in, or null for an
+    // anonymous function.
+    LoxFunction(Expr.Function declaration, Cell[] upvalues,
+            boolean isInitializer, String className) {
+        this(declaration.name, declaration.params, declaration.body,
+             declaration.frameSize, declaration.capturedParams,
+             declaration.profile, upvalues, isInitializer, null,
+             className);
     }
 
-    LoxFunction(Token name, List<Token> params, List<Stmt> body, Environment closure,
-            boolean isInitializer) {
+    private LoxFunction(Token name, List<Token> params, List<Stmt> body,
+            int frameSize, int[] capturedParams, Jit.Profile profile,
+            Cell[] upvalues, boolean isInitializer, LoxInstance receiver,
+            String className) {
         this.isInitializer = isInitializer;
-        this.closure = closure;
+        this.receiver = receiver;
+        this.className = className;
+        this.upvalues = upvalues;
         this.name = name;
         this.params = params;
         this.body = body;
+        this.frameSize = frameSize;
+        this.capturedParams = capturedParams;
+        this.profile = profile;
     }
 
     LoxFunction bind(LoxInstance instance) {
-        Environment environment = new Environment(closure);
-        environment.define("this", instance);
-        return new LoxFunction(name, params, body, environment,
-                                 isInitializer);
+        return new LoxFunction(name, params, body, frameSize,
+                               capturedParams, profile, upvalues,
+                               isInitializer, instance, className);
     }
 
     public void define(Token name) {
@@ -50,24 +70,76 @@ class LoxFunction implements LoxCallable {
         return params.size();
     }
 
+    // The parameters take the first slots of the frame, then a method's
+    // "this", then the locals of every block of the body.
     @Override
-    public Object call(Interpreter interpreter, List<Object> arguments) {
-        Environment environment = new Environment(closure);
+    public Object[] frame() {
+        return frameSize == 0 ? Interpreter.EMPTY_FRAME
+                              : new Object[frameSize];
+    }
 
-        for(int i = 0; i < params.size(); ++i) {
-            environment.define(params.get(i).lexeme,
-                arguments.get(i));
-        }
+    @Override
+    public Object call(Interpreter interpreter, Object[] frame) {
+        return invoke(interpreter, receiver, frame);
+    }
+
+    // Runs a method on an instance without binding it first. frame comes
+    // from frame(), with the arguments in place.
+    Object invoke(Interpreter interpreter, LoxInstance receiver,
+                  Object[] frame) {
+        Profiler profiler = interpreter.profiler;
+        if(profiler == null) return run(interpreter, receiver, frame);
 
+        profiler.enter(profiledName(), name == null ? 0 : name.line);
         try {
-            interpreter.executeBlock(body, environment);
-        } catch(Return returnValue) {
-            if (isInitializer) return closure.getAt(0, "this");
+            return run(interpreter, receiver, frame);
+        } finally {
+            profiler.exit();
+        }
+    }
+
+    // How the profiler shows this function: a method with its class, so
+    // methods of the same name in different classes are told apart.
+    private String profiledName() {
+        if(name == null) return "<fn>";
+        if(className == null) return name.lexeme;
+        return className + "." + name.lexeme;
+    }
+
+    private Object run(Interpreter interpreter, LoxInstance receiver,
+                       Object[] frame) {
+        int arity = params.size();
+        // Compiled code doesn't tell the profiler which line it is on, so
+        // nothing is recorded, compiled or run compiled while profiling.
+        boolean jit = interpreter.profiler == null;
+        Jit.Code code = jit ? profile.code : null;
+        if(code != null) {
+            Object result = code.call(interpreter, upvalues, receiver,
+                                      frame);
+            if(result != Jit.DEOPT) {
+                if(isInitializer) return receiver;
+                return result;
+            }
+
+            // The compiled code's assumptions no longer hold.
+            Jit.deoptimize(profile, frame, arity);
+        } else if(jit && !profile.failed) {
+            Jit.record(profile, frame, arity);
+            if(++profile.calls == Jit.THRESHOLD) {
+                Jit.compile(profile, receiver != null, params, body,
+                            frameSize);
+            }
+        }
 
-            return returnValue.value;
+        if(receiver != null) frame[arity] = receiver;
+        for(int captured : capturedParams) {
+            frame[captured] = new Cell(frame[captured]);
         }
 
-        if(isInitializer) return closure.getAt(0, "this");
+        Completion completion = interpreter.executeBody(body, frame,
+                                                        upvalues);
+        if(isInitializer) return receiver;
+        if(completion == Completion.RETURN) return interpreter.takeReturnValue();
 
         return null;
     }
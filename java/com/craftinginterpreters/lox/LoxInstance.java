@@ -1,21 +1,22 @@
 package com.craftinginterpreters.lox;
 
-import java.util.Map;
-import java.util.HashMap;
+import java.util.Arrays;
 
 class LoxInstance {
-    private LoxClass klass;
-    private final Map<String, Object> fields = new HashMap<>();
+    private static final Object[] NO_FIELDS = new Object[0];
 
-    LoxInstance(LoxClass klass) {
+    final LoxClass klass;
+    // Fields are stored in slots laid out by the shape.
+    Shape shape;
+    Object[] fields = NO_FIELDS;
+
+    // shape is the interpreter's empty one.
+    LoxInstance(LoxClass klass, Shape shape) {
         this.klass = klass;
+        this.shape = shape;
     }
 
-    Object get(Token name) {
-        if(fields.containsKey(name.lexeme)) {
-            return fields.get(name.lexeme);
-        }
-
+    Object getMethod(Token name) {
         LoxFunction method = klass.findMethod(name.lexeme);
         if(method != null) return method.bind(this);
 
@@ -23,8 +24,13 @@ class LoxInstance {
             "Undefined property '" + name.lexeme + "'.");
     }
 
-    void set(Token name, Object value) {
-        fields.put(name.lexeme, value);
+    void store(Shape shape, int slot, Object value) {
+        if(slot >= fields.length) {
+            fields = Arrays.copyOf(fields, Math.max(4, fields.length * 2));
+        }
+
+        this.shape = shape;
+        fields[slot] = value;
     }
 
     @Override
@@ -0,0 +1,35 @@
+package com.craftinginterpreters.lox;
+
+// Inline cache of a method call site: the receivers' classes and shapes
+// seen there, and the method each one resolved to. The shape is part of
+// the key because a field of the same name would shadow the method.
+class MethodCache {
+    private static final int POLYMORPHIC = 4;
+
+    private final LoxClass[] classes = new LoxClass[POLYMORPHIC];
+    private final Shape[] shapes = new Shape[POLYMORPHIC];
+    private final LoxFunction[] methods = new LoxFunction[POLYMORPHIC];
+    private int count = 0;
+
+    // The method instance.name calls, or null if it is a field or
+    // undefined.
+    LoxFunction lookup(LoxInstance instance, Token name) {
+        for(int i = 0; i < count; ++i) {
+            if(classes[i] == instance.klass && shapes[i] == instance.shape) {
+                return methods[i];
+            }
+        }
+
+        if(instance.shape.slotOf(name.lexeme) >= 0) return null;
+
+        LoxFunction method = instance.klass.findMethod(name.lexeme);
+        if(method != null && count < POLYMORPHIC) {
+            classes[count] = instance.klass;
+            shapes[count] = instance.shape;
+            methods[count] = method;
+            count++;
+        }
+
+        return method;
+    }
+}
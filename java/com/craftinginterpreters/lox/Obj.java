@@ -0,0 +1,115 @@
+package com.craftinginterpreters.lox;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// Runtime values of the bytecode VM. Numbers, strings, booleans and nil
+// are the same Java objects the tree-walking Interpreter uses.
+abstract class Obj {
+    static class Function extends Obj {
+        final String name;
+        final Chunk chunk = new Chunk();
+        int arity = 0;
+        int upvalueCount = 0;
+
+        Function(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String toString() {
+            return "<fn " + (name != null ? name : "object") + ">";
+        }
+    }
+
+    interface NativeFn {
+        Object call(Object[] stack, int args);
+    }
+
+    static class Native extends Obj {
+        final int arity;
+        final NativeFn function;
+
+        Native(int arity, NativeFn function) {
+            this.arity = arity;
+            this.function = function;
+        }
+
+        @Override
+        public String toString() {
+            return "<native fn>";
+        }
+    }
+
+    static class Upvalue extends Obj {
+        // Stack slot of the variable while it is still on the stack,
+        // -1 once it has been closed over.
+        int location;
+        Object closed;
+        Upvalue next;
+
+        Upvalue(int location, Upvalue next) {
+            this.location = location;
+            this.next = next;
+        }
+    }
+
+    static class Closure extends Obj {
+        final Function function;
+        final Upvalue[] upvalues;
+
+        Closure(Function function) {
+            this.function = function;
+            this.upvalues = new Upvalue[function.upvalueCount];
+        }
+
+        @Override
+        public String toString() {
+            return function.toString();
+        }
+    }
+
+    static class Class extends Obj {
+        final String name;
+        final Map<String, Closure> methods = new HashMap<>();
+        Closure initializer;
+
+        Class(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    static class Instance extends Obj {
+        final Class klass;
+        final Map<String, Object> fields = new HashMap<>();
+
+        Instance(Class klass) {
+            this.klass = klass;
+        }
+
+        @Override
+        public String toString() {
+            return klass.name + " instance";
+        }
+    }
+
+    static class BoundMethod extends Obj {
+        final Object receiver;
+        final Closure method;
+
+        BoundMethod(Object receiver, Closure method) {
+            this.receiver = receiver;
+            this.method = method;
+        }
+
+        @Override
+        public String toString() {
+            return method.toString();
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.craftinginterpreters.lox;
+
+// Instructions of the VM's bytecode. Operands follow the opcode in the
+// chunk, big endian: constant, slot and name operands are two bytes,
+// jump offsets four bytes and argument counts one byte.
+final class OpCode {
+    private OpCode() {}
+
+    static final byte CONSTANT      =  0; // index
+    static final byte NIL           =  1;
+    static final byte TRUE          =  2;
+    static final byte FALSE         =  3;
+    static final byte POP           =  4;
+
+    static final byte GET_LOCAL     =  5; // slot
+    static final byte SET_LOCAL     =  6; // slot
+    static final byte GET_GLOBAL    =  7; // global slot
+    static final byte DEFINE_GLOBAL =  8; // global slot
+    static final byte SET_GLOBAL    =  9; // global slot
+    static final byte GET_UPVALUE   = 10; // index
+    static final byte SET_UPVALUE   = 11; // index
+    static final byte GET_PROPERTY  = 12; // name
+    static final byte SET_PROPERTY  = 13; // name
+    static final byte GET_SUPER     = 14; // name
+
+    static final byte EQUAL         = 15;
+    static final byte NOT_EQUAL     = 16;
+    static final byte GREATER       = 17;
+    static final byte GREATER_EQUAL = 18;
+    static final byte LESS          = 19;
+    static final byte LESS_EQUAL    = 20;
+    static final byte ADD           = 21;
+    static final byte SUBTRACT      = 22;
+    static final byte MULTIPLY      = 23;
+    static final byte DIVIDE        = 24;
+    static final byte NOT           = 25;
+    static final byte NEGATE        = 26;
+
+    static final byte PRINT         = 27;
+    static final byte JUMP          = 28; // offset
+    static final byte JUMP_IF_FALSE = 29; // offset
+    static final byte LOOP          = 30; // offset
+
+    static final byte CALL          = 31; // argument count
+    static final byte INVOKE        = 32; // name, argument count
+    static final byte SUPER_INVOKE  = 33; // name, argument count
+    // function, then (is local, index) per upvalue
+    static final byte CLOSURE       = 34;
+    static final byte CLOSE_UPVALUE = 35;
+    static final byte RETURN        = 36;
+
+    static final byte CLASS         = 37; // name
+    static final byte INHERIT       = 38;
+    static final byte METHOD        = 39; // name
+}
@@ -0,0 +1,458 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// Folds the constant parts of a resolved program and drops the parts that
+// can never run: operators on literals, conditions that are literals,
+// code after a return, break or continue, empty blocks and literals whose
+// value is thrown away. An operation that would fail at runtime, like a
+// division by zero, is left for the interpreter to report.
+//
+// The resolved tree is left as it is; nodes with anything to optimize
+// below them are copied, with what the Resolver set on them.
+class Optimizer implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+    // Stands in for a loop body or branch that optimized away.
+    private static final Stmt EMPTY =
+            new Stmt.Block(Collections.<Stmt>emptyList());
+
+    List<Stmt> optimize(List<Stmt> statements) {
+        List<Stmt> optimized = null;
+        for(int i = 0; i < statements.size(); ++i) {
+            Stmt statement = statements.get(i);
+            Stmt result = optimize(statement);
+
+            // Copied from the first change on.
+            if(optimized == null && result != statement) {
+                optimized = new ArrayList<>(statements.subList(0, i));
+            }
+            if(optimized != null && result != null) optimized.add(result);
+
+            if(result != null && completesAbruptly(result)) {
+                if(optimized == null && i < statements.size() - 1) {
+                    optimized = new ArrayList<>(statements.subList(0, i + 1));
+                }
+                break;
+            }
+        }
+
+        return optimized == null ? statements : optimized;
+    }
+
+    // null if the statement does nothing.
+    private Stmt optimize(Stmt stmt) {
+        Stmt optimized = stmt.accept(this);
+        // A copy starts where the statement did.
+        if(optimized != null && optimized != EMPTY && optimized.line == 0) {
+            optimized.line = stmt.line;
+        }
+        return optimized;
+    }
+
+    private Expr optimize(Expr expr) {
+        return expr.accept(this);
+    }
+
+    // The statement never goes on to the one after it.
+    private static boolean completesAbruptly(Stmt stmt) {
+        if(stmt instanceof Stmt.Return) return true;
+
+        if(stmt instanceof Stmt.Block) {
+            List<Stmt> statements = ((Stmt.Block)stmt).statements;
+            return !statements.isEmpty() &&
+                    completesAbruptly(statements.get(statements.size() - 1));
+        }
+
+        if(stmt instanceof Stmt.If) {
+            Stmt.If ifStmt = (Stmt.If)stmt;
+            return ifStmt.elseBranch != null &&
+                    completesAbruptly(ifStmt.thenBranch) &&
+                    completesAbruptly(ifStmt.elseBranch);
+        }
+
+        return false;
+    }
+
+    private static boolean isLiteral(Expr expr) {
+        return expr instanceof Expr.Literal;
+    }
+
+    private static Object valueOf(Expr expr) {
+        return ((Expr.Literal)expr).value;
+    }
+
+    private static Expr.Function copy(Expr.Function function,
+                                      List<Stmt> body) {
+        Expr.Function copy = new Expr.Function(function.name,
+                                               function.params, body);
+        copy.access = function.access;
+        copy.slot = function.slot;
+        copy.captured = function.captured;
+        copy.frameSize = function.frameSize;
+        copy.upvalues = function.upvalues;
+        copy.capturedParams = function.capturedParams;
+        return copy;
+    }
+
+    // The value of the operator on two literals, or null if it fails and
+    // has to fail at runtime instead.
+    private static Expr.Literal fold(Expr.Binary expr, Object left,
+                                     Object right) {
+        try {
+            switch(expr.operator.type) {
+                case MINUS:
+                case SLASH:
+                case STAR: {
+                    Interpreter.checkNumberOperands(expr.operator, left,
+                                                    right);
+                    double a = (double)left;
+                    double b = (double)right;
+                    if(expr.operator.type == TokenType.MINUS) {
+                        return new Expr.Literal(Interpreter.box(a - b));
+                    }
+                    if(expr.operator.type == TokenType.SLASH) {
+                        return new Expr.Literal(Interpreter.box(a / b));
+                    }
+                    return new Expr.Literal(Interpreter.box(a * b));
+                }
+                default: {
+                    Object value = Interpreter.binary(expr, left, right);
+                    // A literal's string is flat.
+                    if(value instanceof Rope) value = value.toString();
+                    return new Expr.Literal(value);
+                }
+            }
+        } catch(RuntimeError error) {
+            return null;
+        }
+    }
+
+    // Expr.Visitor<Expr>
+
+    @Override
+    public Expr visitAssignExpr(Expr.Assign expr) {
+        Expr value = optimize(expr.value);
+        if(value == expr.value) return expr;
+
+        Expr.Assign assign = new Expr.Assign(expr.name, value);
+        assign.access = expr.access;
+        assign.slot = expr.slot;
+        return assign;
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr) {
+        Expr left = optimize(expr.left);
+        Expr right = optimize(expr.right);
+
+        // A literal on the left of a comma has nothing to do.
+        if(expr.operator.type == TokenType.COMMA && isLiteral(left)) {
+            return right;
+        }
+
+        Expr.Binary binary = expr;
+        if(left != expr.left || right != expr.right) {
+            binary = new Expr.Binary(left, expr.operator, right);
+        }
+
+        if(isLiteral(left) && isLiteral(right)) {
+            Expr.Literal folded = fold(binary, valueOf(left), valueOf(right));
+            if(folded != null) return folded;
+        }
+
+        return binary;
+    }
+
+    @Override
+    public Expr visitCallExpr(Expr.Call expr) {
+        Expr callee = optimize(expr.callee);
+        List<Expr> arguments = optimizeAll(expr.arguments);
+        if(callee == expr.callee && arguments == expr.arguments) return expr;
+
+        return new Expr.Call(callee, expr.paren, arguments);
+    }
+
+    private List<Expr> optimizeAll(List<Expr> exprs) {
+        List<Expr> optimized = null;
+        for(int i = 0; i < exprs.size(); ++i) {
+            Expr expr = exprs.get(i);
+            Expr result = optimize(expr);
+            if(optimized == null && result != expr) {
+                optimized = new ArrayList<>(exprs.subList(0, i));
+            }
+            if(optimized != null) optimized.add(result);
+        }
+
+        return optimized == null ? exprs : optimized;
+    }
+
+    @Override
+    public Expr visitGetExpr(Expr.Get expr) {
+        Expr object = optimize(expr.object);
+        if(object == expr.object) return expr;
+
+        return new Expr.Get(object, expr.name);
+    }
+
+    @Override
+    public Expr visitFunctionExpr(Expr.Function expr) {
+        List<Stmt> body = optimize(expr.body);
+        if(body == expr.body) return expr;
+
+        return copy(expr, body);
+    }
+
+    @Override
+    public Expr visitGroupingExpr(Expr.Grouping expr) {
+        // Parentheses only matter to the parser.
+        return optimize(expr.expression);
+    }
+
+    @Override
+    public Expr visitLiteralExpr(Expr.Literal expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitLogicalExpr(Expr.Logical expr) {
+        Expr left = optimize(expr.left);
+        if(isLiteral(left)) {
+            boolean truthy = Interpreter.isTruthy(valueOf(left));
+            if(expr.operator.type == TokenType.OR ? truthy : !truthy) {
+                return left;
+            }
+            return optimize(expr.right);
+        }
+
+        Expr right = optimize(expr.right);
+        if(left == expr.left && right == expr.right) return expr;
+
+        return new Expr.Logical(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitSetExpr(Expr.Set expr) {
+        Expr object = optimize(expr.object);
+        Expr value = optimize(expr.value);
+        if(object == expr.object && value == expr.value) return expr;
+
+        return new Expr.Set(object, expr.name, value);
+    }
+
+    @Override
+    public Expr visitSuperExpr(Expr.Super expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitThisExpr(Expr.This expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitTernaryExpr(Expr.Ternary expr) {
+        Expr first = optimize(expr.first);
+        if(isLiteral(first)) {
+            return optimize(Interpreter.isTruthy(valueOf(first))
+                            ? expr.second : expr.third);
+        }
+
+        Expr second = optimize(expr.second);
+        Expr third = optimize(expr.third);
+        if(first == expr.first && second == expr.second &&
+                third == expr.third) {
+            return expr;
+        }
+
+        return new Expr.Ternary(first, expr.left, second, expr.right, third);
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr) {
+        Expr right = optimize(expr.right);
+
+        if(isLiteral(right)) {
+            Object value = valueOf(right);
+            if(expr.operator.type == TokenType.BANG) {
+                return new Expr.Literal(!Interpreter.isTruthy(value));
+            }
+            // Negating anything else fails at runtime.
+            if(value instanceof Double) {
+                return new Expr.Literal(Interpreter.box(-(double)value));
+            }
+        }
+
+        if(right == expr.right) return expr;
+        return new Expr.Unary(expr.operator, right);
+    }
+
+    @Override
+    public Expr visitVariableExpr(Expr.Variable expr) {
+        return expr;
+    }
+
+    // Stmt.Visitor<Stmt>
+
+    @Override
+    public Stmt visitBlockStmt(Stmt.Block stmt) {
+        List<Stmt> statements = optimize(stmt.statements);
+        if(statements.isEmpty()) return null;
+        if(statements == stmt.statements) return stmt;
+
+        return new Stmt.Block(statements);
+    }
+
+    // A statement that has to be there, even if it does nothing.
+    private Stmt branch(Stmt stmt) {
+        Stmt optimized = optimize(stmt);
+        return optimized == null ? EMPTY : optimized;
+    }
+
+    @Override
+    public Stmt visitClassStmt(Stmt.Class stmt) {
+        List<Expr.Function> methods = null;
+        for(int i = 0; i < stmt.methods.size(); ++i) {
+            Expr.Function method = stmt.methods.get(i);
+            Expr.Function result = (Expr.Function)optimize(method);
+            if(methods == null && result != method) {
+                methods = new ArrayList<>(stmt.methods.subList(0, i));
+            }
+            if(methods != null) methods.add(result);
+        }
+        if(methods == null) return stmt;
+
+        Stmt.Class klass = new Stmt.Class(stmt.name, stmt.superclass,
+                                          methods);
+        klass.access = stmt.access;
+        klass.slot = stmt.slot;
+        klass.captured = stmt.captured;
+        klass.superSlot = stmt.superSlot;
+        return klass;
+    }
+
+    @Override
+    public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+        Expr expression = optimize(stmt.expression);
+        if(isLiteral(expression)) return null;
+        if(expression == stmt.expression) return stmt;
+
+        return new Stmt.Expression(expression);
+    }
+
+    @Override
+    public Stmt visitForStmt(Stmt.For stmt) {
+        Stmt initializer = stmt.initializer == null
+                ? null : optimize(stmt.initializer);
+
+        Expr condition = stmt.condition == null
+                ? null : optimize(stmt.condition);
+        if(condition != null && isLiteral(condition)) {
+            // The body never runs.
+            if(!Interpreter.isTruthy(valueOf(condition))) return initializer;
+            condition = null;
+        }
+
+        Expr increment = stmt.increment == null
+                ? null : optimize(stmt.increment);
+        if(increment != null && isLiteral(increment)) increment = null;
+
+        Stmt body = branch(stmt.body);
+        if(initializer == stmt.initializer && condition == stmt.condition &&
+                increment == stmt.increment && body == stmt.body) {
+            return stmt;
+        }
+
+        return new Stmt.For(initializer, condition, increment, body);
+    }
+
+    @Override
+    public Stmt visitFunctionStmt(Stmt.Function stmt) {
+        List<Stmt> body = optimize(stmt.body);
+        if(body == stmt.body) return stmt;
+
+        Stmt.Function function = new Stmt.Function(stmt.name, stmt.params,
+                                                   body);
+        function.access = stmt.access;
+        function.slot = stmt.slot;
+        function.captured = stmt.captured;
+        function.frameSize = stmt.frameSize;
+        function.upvalues = stmt.upvalues;
+        function.capturedParams = stmt.capturedParams;
+        return function;
+    }
+
+    @Override
+    public Stmt visitIfStmt(Stmt.If stmt) {
+        Expr condition = optimize(stmt.condition);
+        if(isLiteral(condition)) {
+            if(Interpreter.isTruthy(valueOf(condition))) {
+                return optimize(stmt.thenBranch);
+            }
+            return stmt.elseBranch == null ? null : optimize(stmt.elseBranch);
+        }
+
+        Stmt thenBranch = optimize(stmt.thenBranch);
+        Stmt elseBranch = stmt.elseBranch == null
+                ? null : optimize(stmt.elseBranch);
+
+        // Only the condition is left to run.
+        if(thenBranch == null && elseBranch == null) {
+            return new Stmt.Expression(condition);
+        }
+
+        if(thenBranch == null) thenBranch = EMPTY;
+        if(condition == stmt.condition && thenBranch == stmt.thenBranch &&
+                elseBranch == stmt.elseBranch) {
+            return stmt;
+        }
+
+        return new Stmt.If(condition, thenBranch, elseBranch);
+    }
+
+    @Override
+    public Stmt visitPrintStmt(Stmt.Print stmt) {
+        Expr expression = optimize(stmt.expression);
+        if(expression == stmt.expression) return stmt;
+
+        return new Stmt.Print(expression);
+    }
+
+    @Override
+    public Stmt visitReturnStmt(Stmt.Return stmt) {
+        if(stmt.value == null) return stmt;
+
+        Expr value = optimize(stmt.value);
+        if(value == stmt.value) return stmt;
+
+        return new Stmt.Return(stmt.keyword, value);
+    }
+
+    @Override
+    public Stmt visitVarStmt(Stmt.Var stmt) {
+        if(stmt.initializer == null) return stmt;
+
+        Expr initializer = optimize(stmt.initializer);
+        if(initializer == stmt.initializer) return stmt;
+
+        Stmt.Var var = new Stmt.Var(stmt.name, initializer);
+        var.access = stmt.access;
+        var.slot = stmt.slot;
+        var.captured = stmt.captured;
+        return var;
+    }
+
+    @Override
+    public Stmt visitWhileStmt(Stmt.While stmt) {
+        Expr condition = optimize(stmt.condition);
+        if(isLiteral(condition) &&
+                !Interpreter.isTruthy(valueOf(condition))) {
+            return null;
+        }
+
+        Stmt body = branch(stmt.body);
+        if(condition == stmt.condition && body == stmt.body) return stmt;
+
+        return new Stmt.While(condition, body);
+    }
+}
@@ -0,0 +1,54 @@
+package com.craftinginterpreters.lox;
+
+// Where print statements write. System.out locks and flushes on every
+// line, so printed lines collect here instead and go out together once
+// enough are waiting. Lox flushes whatever is left when a program ends,
+// before it reports an error, and before each REPL prompt, so stdout and
+// stderr still come out in order. Only one thread prints at a time.
+abstract class Output {
+    static final Output stdout = new Output() {
+        @Override
+        void write(CharSequence text) {
+            // Whatever System.out is now, in case it has been replaced.
+            System.out.append(text);
+            System.out.flush();
+        }
+    };
+
+    static final Output stderr = new Output() {
+        @Override
+        void write(CharSequence text) {
+            System.err.append(text);
+            System.err.flush();
+        }
+    };
+
+    // Flushed once this many characters are waiting.
+    private static final int LIMIT = 1 << 16;
+    private static final String NEWLINE = System.lineSeparator();
+
+    private final StringBuilder buffer = new StringBuilder(LIMIT);
+
+    // Where the waiting text goes.
+    abstract void write(CharSequence text);
+
+    void print(CharSequence text) {
+        buffer.append(text);
+        if(buffer.length() >= LIMIT) flush();
+    }
+
+    void println(String text) {
+        buffer.append(text).append(NEWLINE);
+        if(buffer.length() >= LIMIT) flush();
+    }
+
+    void flush() {
+        if(buffer.length() == 0) return;
+
+        write(buffer);
+
+        buffer.setLength(0);
+        // Don't hold on to the room a very long line needed.
+        if(buffer.capacity() > 2 * LIMIT) buffer.trimToSize();
+    }
+}
@@ -1,7 +1,6 @@
 package com.craftinginterpreters.lox;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 
 import static com.craftinginterpreters.lox.TokenType.*;
@@ -9,14 +8,23 @@ import static com.craftinginterpreters.lox.TokenType.*;
 class Parser {
     private static class ParseError extends RuntimeException {}
 
-    private final List<Token> tokens;
-    private int current = 0;
+    private final TokenStream tokens;
+    private final ErrorReporter errors;
+    // The token being looked at, and the one consumed before it.
+    private Token current;
+    private Token previous;
 
     // before Resolver.
 //    private int loopDepth = 0;
 
-    Parser(List<Token> tokens) {
+    Parser(List<Token> tokens, ErrorReporter errors) {
+        this(tokens.iterator()::next, errors);
+    }
+
+    Parser(TokenStream tokens, ErrorReporter errors) {
         this.tokens = tokens;
+        this.errors = errors;
+        this.current = tokens.next();
     }
 
     // temporary before statements
@@ -33,16 +41,22 @@ class Parser {
 
     private Stmt declaration() {
         try {
-            if(match(CLASS)) return classDeclaration();
-            if(match(FUN)) {
-                Stmt stmt = new Stmt.Expression(function("function"));
+            int line = peek().line;
+            Stmt stmt;
+            if(match(CLASS)) {
+                stmt = classDeclaration();
+            } else if(match(FUN)) {
+                stmt = new Stmt.Expression(function("function"));
                 // handle fun() {};
                 match(SEMICOLON);
-                return stmt;
+            } else if(match(VAR)) {
+                stmt = varDeclaration();
+            } else {
+                return statement();
             }
-            if(match(VAR)) return varDeclaration();
 
-            return statement();
+            stmt.line = line;
+            return stmt;
         } catch(ParseError error) {
             sincronize();
             return null;
@@ -111,6 +125,13 @@ class Parser {
     }
 
     private Stmt statement() {
+        int line = peek().line;
+        Stmt stmt = statementWithoutLine();
+        stmt.line = line;
+        return stmt;
+    }
+
+    private Stmt statementWithoutLine() {
         if(match(BREAK, CONTINUE, RETURN)) return returnStatement();
 
         if(match(FOR)) return forStatement();
@@ -135,6 +156,7 @@ class Parser {
     }
 
     private Stmt forStatement() {
+        int line = previous().line;
         consume(LEFT_PAREN, "Expect '(' after 'for'.");
 
         Stmt initializer;
@@ -145,6 +167,7 @@ class Parser {
         } else {
             initializer = expressionStatement();
         }
+        if(initializer != null) initializer.line = line;
 
         Expr condition = null;
         if(!check(SEMICOLON)) {
@@ -160,21 +183,7 @@ class Parser {
 
         Stmt body = statement();
 
-        if(increment != null) {
-            body = new Stmt.Block(Arrays.asList(
-                body,
-                new Stmt.Expression(increment)
-            ));
-        }
-
-        if(condition == null) condition = new Expr.Literal(true);
-        body = new Stmt.While(condition, body);
-
-        if(initializer != null) {
-            body = new Stmt.Block(Arrays.asList(initializer, body));
-        }
-
-        return body;
+        return new Stmt.For(initializer, condition, increment, body);
     }
 
     private Stmt ifStatement() {
@@ -454,7 +463,7 @@ class Parser {
     }
 
     private ParseError error(Token token, String message) {
-        Lox.error(token, message);
+        errors.error(token, message);
         return new ParseError();
     }
 
@@ -501,7 +510,10 @@ class Parser {
     }
 
     private Token advance() {
-        if(!isAtEnd()) current++;
+        if(!isAtEnd()) {
+            previous = current;
+            current = tokens.next();
+        }
         return previous();
     }
 
@@ -510,10 +522,10 @@ class Parser {
     }
 
     private Token peek() {
-        return tokens.get(current);
+        return current;
     }
 
     private Token previous() {
-        return tokens.get(current - 1);
+        return previous;
     }
 }
@@ -0,0 +1,196 @@
+package com.craftinginterpreters.lox;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Where a Lox program spends its time, for --profile. The interpreter
+// keeps a shadow stack of the Lox functions running, each with the line
+// of the statement it is on, and a thread looks at it every millisecond.
+//
+// The stack is written without locks. A sample can see a line a
+// statement late, or a frame just pushed with its caller's line, which
+// washes out over enough samples.
+//
+// Functions aren't compiled by the JIT while profiling, which would stop
+// them updating their line. Methods are named with their class.
+final class Profiler {
+    private static final long INTERVAL_NANOS = 1_000_000;
+    private static final String SCRIPT = "<script>";
+
+    // The shadow stack. The script is frame 0.
+    private volatile String[] names = new String[64];
+    private volatile int[] lines = new int[64];
+    private volatile int depth = 1;
+
+    // Written by the sampling thread only.
+    private final Map<String, Integer> self = new HashMap<>();
+    private final Map<String, Integer> total = new HashMap<>();
+    private final Map<String, Integer> lineHits = new HashMap<>();
+    private final Map<String, Integer> stacks = new HashMap<>();
+    // Samples taken, and times the sampler looked.
+    private int samples = 0;
+    private int ticks = 0;
+
+    private Thread sampler;
+    private long started;
+
+    Profiler() {
+        names[0] = SCRIPT;
+    }
+
+    // A call to the function called name, declared on line.
+    void enter(String name, int line) {
+        int depth = this.depth;
+        if(depth == names.length) grow();
+        names[depth] = name;
+        lines[depth] = line;
+        // Publishes the frame.
+        this.depth = depth + 1;
+    }
+
+    void exit() {
+        depth = depth - 1;
+    }
+
+    // The running function is on line.
+    void line(int line) {
+        lines[depth - 1] = line;
+    }
+
+    private void grow() {
+        int capacity = names.length * 2;
+        String[] names = new String[capacity];
+        int[] lines = new int[capacity];
+        System.arraycopy(this.names, 0, names, 0, depth);
+        System.arraycopy(this.lines, 0, lines, 0, depth);
+        this.lines = lines;
+        this.names = names;
+    }
+
+    void start() {
+        started = System.nanoTime();
+        sampler = new Thread(this::sample, "lox profiler");
+        sampler.setDaemon(true);
+        sampler.start();
+    }
+
+    private void sample() {
+        long next = System.nanoTime();
+        while(!Thread.currentThread().isInterrupted()) {
+            next += INTERVAL_NANOS;
+            long wait = next - System.nanoTime();
+            if(wait > 0) {
+                try {
+                    Thread.sleep(wait / 1_000_000, (int)(wait % 1_000_000));
+                } catch(InterruptedException error) {
+                    return;
+                }
+            }
+
+            synchronized(this) {
+                record();
+            }
+        }
+    }
+
+    private void record() {
+        int depth = this.depth;
+        String[] names = this.names;
+        int[] lines = this.lines;
+        // Read past a grow() or an exit(), which the next sample fixes.
+        if(depth > names.length || depth > lines.length) return;
+
+        ++ticks;
+        // Nothing has run yet.
+        if(depth == 1 && lines[0] == 0) return;
+
+        String top = names[depth - 1];
+        if(top == null) return;
+        ++samples;
+        add(self, top);
+        add(lineHits, lines[depth - 1] + " " + top);
+
+        // A recursive function counts once toward its total.
+        Set<String> seen = new HashSet<>();
+        StringBuilder stack = new StringBuilder();
+        for(int i = 0; i < depth; ++i) {
+            String name = names[i];
+            if(name == null) return;
+            if(seen.add(name)) add(total, name);
+            if(i > 0) stack.append(';');
+            stack.append(name);
+        }
+        add(stacks, stack.toString());
+    }
+
+    private static void add(Map<String, Integer> counts, String key) {
+        counts.merge(key, 1, Integer::sum);
+    }
+
+    // Stops sampling and prints per-function and per-line counts to err.
+    // The collapsed stacks, one "a;b;c count" line each, go to folded,
+    // which flame graph tools read.
+    synchronized void report(Output err, Path folded) {
+        if(sampler != null) sampler.interrupt();
+        double elapsed = (System.nanoTime() - started) / 1e6;
+        // What one sample stands for, which the sleeps stretch.
+        double millis = ticks == 0 ? 0 : elapsed / ticks;
+
+        err.println(String.format("Profile: %d samples over %.0f ms.",
+                                  samples, samples * millis));
+        err.println("");
+        err.println(String.format("%10s %7s %10s %7s  %s",
+                "self ms", "self%", "total ms", "total%", "function"));
+        for(String name : sorted(total)) {
+            int selfSamples = self.getOrDefault(name, 0);
+            int totalSamples = total.get(name);
+            err.println(String.format("%10.1f %6.1f%% %10.1f %6.1f%%  %s",
+                    selfSamples * millis, percent(selfSamples),
+                    totalSamples * millis, percent(totalSamples), name));
+        }
+
+        err.println("");
+        err.println(String.format("%10s %7s %6s  %s",
+                "hits", "hits%", "line", "function"));
+        for(String line : sorted(lineHits)) {
+            int hits = lineHits.get(line);
+            String[] parts = line.split(" ", 2);
+            err.println(String.format("%10d %6.1f%% %6s  %s",
+                    hits, percent(hits), parts[0], parts[1]));
+        }
+
+        try(PrintWriter writer = new PrintWriter(
+                Files.newBufferedWriter(folded))) {
+            for(String stack : sorted(stacks)) {
+                writer.println(stack + " " + stacks.get(stack));
+            }
+            err.println("");
+            err.println("Collapsed stacks written to " + folded + ".");
+        } catch(IOException error) {
+            err.println("Can't write " + folded + ": " + error.getMessage());
+        }
+        err.flush();
+    }
+
+    private double percent(int count) {
+        return samples == 0 ? 0 : 100.0 * count / samples;
+    }
+
+    // Most counted first.
+    private static List<String> sorted(Map<String, Integer> counts) {
+        List<String> keys = new ArrayList<>(counts.keySet());
+        keys.sort((a, b) -> {
+            int order = Integer.compare(counts.get(b), counts.get(a));
+            return order != 0 ? order : a.compareTo(b);
+        });
+        return keys;
+    }
+}
@@ -0,0 +1,58 @@
+package com.craftinginterpreters.lox;
+
+// Inline cache of a property access site: the shapes of the instances
+// seen there, and the field slot each one maps the name to. Only the
+// first few shapes are cached; after that the site is megamorphic and
+// falls back to looking the name up in the shape.
+class PropertyCache {
+    private static final int POLYMORPHIC = 4;
+
+    private final Shape[] shapes = new Shape[POLYMORPHIC];
+    // For sets, the shape after the store: different from the shape before
+    // when the set adds the field.
+    private final Shape[] targets = new Shape[POLYMORPHIC];
+    private final int[] slots = new int[POLYMORPHIC];
+    private int count = 0;
+
+    Object get(LoxInstance instance, Token name) {
+        Shape shape = instance.shape;
+        for(int i = 0; i < count; ++i) {
+            if(shapes[i] == shape) return instance.fields[slots[i]];
+        }
+
+        int slot = shape.slotOf(name.lexeme);
+        if(slot < 0) return instance.getMethod(name);
+
+        add(shape, shape, slot);
+        return instance.fields[slot];
+    }
+
+    void set(LoxInstance instance, Token name, Object value) {
+        Shape shape = instance.shape;
+        for(int i = 0; i < count; ++i) {
+            if(shapes[i] == shape) {
+                instance.store(targets[i], slots[i], value);
+                return;
+            }
+        }
+
+        Shape target = shape;
+        int slot = shape.slotOf(name.lexeme);
+        if(slot < 0) {
+            target = shape.with(name.lexeme);
+            slot = shape.size();
+        }
+
+        add(shape, target, slot);
+        instance.store(target, slot, value);
+    }
+
+    private void add(Shape shape, Shape target, int slot) {
+        if(count == POLYMORPHIC) return;
+
+        shapes[count] = shape;
+        targets[count] = target;
+        slots[count] = slot;
+        count++;
+    }
+}
@@ -1,5 +1,6 @@
 package com.craftinginterpreters.lox;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -7,7 +8,11 @@ import java.util.Stack;
 
 class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     private final Interpreter interpreter;
-    private final Stack<Map<String, Boolean>> scopes = new Stack<>();
+    private final ErrorReporter errors;
+    private final Stack<Map<String, Local>> scopes = new Stack<>();
+    // The function being resolved. Top-level code has one too, for the
+    // locals of its blocks.
+    private FunctionScope function = new FunctionScope(null);
 
     private FunctionType currentFunction = FunctionType.NONE;
     private Boolean inLoop = false;
@@ -16,11 +21,65 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     Resolver(Interpreter interpreter) {
         // todo
         // report an error if the value of a local variable is never read.
-        // store local variables in an array, as opposed to a map,
-        // and look them up by index.
-        // report unreachable code after a return statement,
 
         this.interpreter = interpreter;
+        this.errors = interpreter.errors;
+    }
+
+    // Where a resolved variable lives at runtime.
+    enum Access {
+        // A slot of the running function's frame. The slot holds a Cell
+        // instead of the value if a closure captures the variable.
+        LOCAL,
+        // A Cell of the running closure, indexed by slot.
+        UPVALUE,
+        // A slot in Globals.
+        GLOBAL
+    }
+
+    private static class Local {
+        final FunctionScope function;
+        final int slot;
+        // The node declaring the variable; null for parameters, "this"
+        // and "super".
+        final Object declaration;
+        // false: variable not initialized yet
+        boolean defined = false;
+        // true: a closure uses the variable, so it lives in a Cell
+        boolean captured = false;
+
+        Local(FunctionScope function, int slot, Object declaration) {
+            this.function = function;
+            this.slot = slot;
+            this.declaration = declaration;
+        }
+    }
+
+    // Every local of a function, in all of its blocks, gets a slot in one
+    // frame. Blocks reuse the slots of the blocks before them.
+    private static class FunctionScope {
+        final FunctionScope enclosing;
+        int count = 0;
+        int frameSize = 0;
+        // The Cells a closure of the function captures when it is
+        // created: a slot of the enclosing function's frame, or -1 minus
+        // an index into the enclosing closure's own Cells.
+        final List<Integer> captures = new ArrayList<>();
+        final Map<Local, Integer> upvalues = new HashMap<>();
+        // Slots of the parameters (and "this") that closures capture.
+        int[] capturedParams;
+
+        FunctionScope(FunctionScope enclosing) {
+            this.enclosing = enclosing;
+        }
+
+        int[] captures() {
+            int[] captures = new int[this.captures.size()];
+            for(int i = 0; i < captures.length; ++i) {
+                captures[i] = this.captures.get(i);
+            }
+            return captures;
+        }
     }
 
     private enum ClassType {
@@ -47,81 +106,176 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     }
 
     void resolve(List<Stmt> statements) {
+        resolveStatements(statements);
+        interpreter.scriptFrameSize = function.frameSize;
+    }
+
+    private void resolveStatements(List<Stmt> statements) {
         for(Stmt statement : statements) {
             resolve(statement);
         }
     }
 
     private void beginScope() {
-        scopes.push(new HashMap<String, Boolean>());
+        scopes.push(new HashMap<String, Local>());
     }
 
     private void endScope() {
-        scopes.pop();
+        Map<String, Local> scope = scopes.pop();
+        for(Local local : scope.values()) {
+            if(local.captured) capture(local.declaration);
+        }
+        function.count -= scope.size();
+    }
+
+    private static void capture(Object declaration) {
+        if(declaration instanceof Stmt.Var) {
+            ((Stmt.Var)declaration).captured = true;
+        } else if(declaration instanceof Stmt.Function) {
+            ((Stmt.Function)declaration).captured = true;
+        } else if(declaration instanceof Stmt.Class) {
+            ((Stmt.Class)declaration).captured = true;
+        } else if(declaration instanceof Expr.Function) {
+            ((Expr.Function)declaration).captured = true;
+        }
     }
 
-    private void declare(Token name) {
-        if(scopes.isEmpty()) return;
+    // How a declaration made now is stored.
+    private Access declaredAccess() {
+        return scopes.isEmpty() ? Access.GLOBAL : Access.LOCAL;
+    }
 
-        Map<String, Boolean> scope = scopes.peek();
+    // Returns the variable's slot in its function's frame, or in Globals.
+    private int declare(Token name, Object declaration) {
+        if(scopes.isEmpty()) return interpreter.globals.slot(name.lexeme);
+
+        Map<String, Local> scope = scopes.peek();
         if(scope.containsKey(name.lexeme)) {
-            Lox.error(name,
+            errors.error(name,
                 "Already a variable with this name in this scope.");
         }
 
-        // false: variable not initialized yet
-        scope.put(name.lexeme, false);
+        return addLocal(name.lexeme, declaration).slot;
+    }
+
+    private Local addLocal(String name, Object declaration) {
+        Local local = new Local(function, function.count++, declaration);
+        function.frameSize = Math.max(function.frameSize, function.count);
+        scopes.peek().put(name, local);
+        return local;
     }
 
     private void define(Token name) {
         if(scopes.isEmpty()) return;
 
         // true: variable initialized
-        scopes.peek().put(name.lexeme, true);
+        scopes.peek().get(name.lexeme).defined = true;
     }
 
-    private void resolveLocal(Expr expr, Token name) {
+    // Returns the slot.
+    private int defineImplicit(String name) {
+        Local local = addLocal(name, null);
+        local.defined = true;
+        return local.slot;
+    }
+
+    // The innermost declaration of name, or null if it is assumed to be
+    // global.
+    private Local lookup(String name) {
         for(int i = scopes.size() - 1; i >= 0; --i) {
-            if(scopes.get(i).containsKey(name.lexeme)) {
-                interpreter.resolve(expr, scopes.size() - 1 - i);
-                return;
-            }
+            Local local = scopes.get(i).get(name);
+            if(local != null) return local;
         }
 
-        // Not found. Assume it is global.
+        return null;
+    }
+
+    private Access accessOf(Local local) {
+        if(local == null) return Access.GLOBAL;
+        return local.function == function ? Access.LOCAL : Access.UPVALUE;
+    }
+
+    // The variable's slot for accessOf(local). A variable of an enclosing
+    // function gets captured.
+    private int slotOf(Local local, String name) {
+        if(local == null) return interpreter.globals.slot(name);
+        if(local.function == function) return local.slot;
+
+        local.captured = true;
+        return upvalue(function, local);
+    }
+
+    // Returns the index of the Cell of local among the function's.
+    private int upvalue(FunctionScope function, Local local) {
+        Integer index = function.upvalues.get(local);
+        if(index != null) return index;
+
+        // Functions in between capture the Cell too, to pass it on.
+        int capture = function.enclosing == local.function
+                ? local.slot : -1 - upvalue(function.enclosing, local);
+        function.captures.add(capture);
+        function.upvalues.put(local, function.captures.size() - 1);
+        return function.captures.size() - 1;
     }
 
     private void resolveFunction(Stmt.Function function, FunctionType type) {
-        resolveFunction(function.params, function.body, type);
+        FunctionScope scope =
+            resolveFunction(function.params, function.body, type);
+        function.frameSize = scope.frameSize;
+        function.upvalues = scope.captures();
+        function.capturedParams = scope.capturedParams;
     }
 
     private void resolveFunction(Expr.Function function, FunctionType type) {
-        resolveFunction(function.params, function.body, type);
+        FunctionScope scope =
+            resolveFunction(function.params, function.body, type);
+        function.frameSize = scope.frameSize;
+        function.upvalues = scope.captures();
+        function.capturedParams = scope.capturedParams;
     }
 
-    private void resolveFunction(
+    private FunctionScope resolveFunction(
             List<Token> functionParams, 
             List<Stmt> functionBody, 
             FunctionType type) {
         FunctionType enclosingFunction = currentFunction;
         currentFunction = type;
+        FunctionScope scope = new FunctionScope(function);
+        function = scope;
 
         beginScope();
+        // Callers evaluate arguments into the first slots of the frame,
+        // so a method's receiver comes after them.
         for(Token param : functionParams) {
-            declare(param);
+            declare(param, null);
             define(param);
         }
+        if(type == FunctionType.METHOD || type == FunctionType.INITIALIZER) {
+            defineImplicit("this");
+        }
 
         // avoids while(...) { fun f(){ break; } }
         boolean enclosingLoop = inLoop;
         inLoop = false;
-        resolve(functionBody);
+        resolveStatements(functionBody);
 //        hasReturned = false;
         inLoop = enclosingLoop;
 
+        List<Integer> captured = new ArrayList<>();
+        for(Local local : scopes.peek().values()) {
+            if(local.captured && local.declaration == null) {
+                captured.add(local.slot);
+            }
+        }
+        scope.capturedParams = new int[captured.size()];
+        for(int i = 0; i < captured.size(); ++i) {
+            scope.capturedParams[i] = captured.get(i);
+        }
         endScope();
 
+        function = scope.enclosing;
         currentFunction = enclosingFunction;
+        return scope;
     }
 
     // Expr.Visitor<Void>
@@ -129,7 +283,10 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     @Override
     public Void visitAssignExpr(Expr.Assign expr) {
         resolve(expr.value);
-        resolveLocal(expr, expr.name);
+
+        Local local = lookup(expr.name.lexeme);
+        expr.access = accessOf(local);
+        expr.slot = slotOf(local, expr.name.lexeme);
         return null;
     }
 
@@ -154,7 +311,8 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     @Override
     public Void visitFunctionExpr(Expr.Function expr) {
         if(expr.name != null) {
-            declare(expr.name);
+            expr.access = declaredAccess();
+            expr.slot = declare(expr.name, expr);
             define(expr.name);
         }
 
@@ -196,26 +354,34 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     @Override
     public Void visitSuperExpr(Expr.Super expr) {
         if (currentClass == ClassType.NONE) {
-            Lox.error(expr.keyword,
+            errors.error(expr.keyword,
                 "Can't use 'super' outside of a class.");
         } else if (currentClass != ClassType.SUBCLASS) {
-            Lox.error(expr.keyword,
+            errors.error(expr.keyword,
                 "Can't use 'super' in a class with no superclass.");
         }
 
-        resolveLocal(expr, expr.keyword);
+        Local superclass = lookup("super");
+        expr.access = accessOf(superclass);
+        expr.slot = slotOf(superclass, "super");
+
+        Local object = lookup("this");
+        expr.thisAccess = accessOf(object);
+        expr.thisSlot = slotOf(object, "this");
         return null;
     }
 
     @Override
     public Void visitThisExpr(Expr.This expr) {
         if(currentClass == ClassType.NONE) {
-            Lox.error(expr.keyword,
+            errors.error(expr.keyword,
                       "Can't use 'this' outside of a class.");
             return null;
         }
 
-        resolveLocal(expr, expr.keyword);
+        Local local = lookup("this");
+        expr.access = accessOf(local);
+        expr.slot = slotOf(local, "this");
 
         return null;
     }
@@ -236,13 +402,17 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitVariableExpr(Expr.Variable expr) {
-        if(!scopes.isEmpty() &&
-           scopes.peek().get(expr.name.lexeme) == Boolean.FALSE) {
-            Lox.error(expr.name,
-                "Can't read local variable in its own initializer.");
+        if(!scopes.isEmpty()) {
+            Local local = scopes.peek().get(expr.name.lexeme);
+            if(local != null && !local.defined) {
+                errors.error(expr.name,
+                    "Can't read local variable in its own initializer.");
+            }
         }
 
-        resolveLocal(expr, expr.name);
+        Local local = lookup(expr.name.lexeme);
+        expr.access = accessOf(local);
+        expr.slot = slotOf(local, expr.name.lexeme);
         return null;
     }
 
@@ -251,7 +421,7 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     @Override
     public Void visitBlockStmt(Stmt.Block stmt) {
         beginScope();
-        resolve(stmt.statements);
+        resolveStatements(stmt.statements);
         endScope();
         return null;
     }
@@ -261,24 +431,22 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         ClassType enclosingClass = currentClass;
         currentClass = ClassType.CLASS;
 
-        declare(stmt.name);
+        stmt.access = declaredAccess();
+        stmt.slot = declare(stmt.name, stmt);
         define(stmt.name);
 
         if(stmt.superclass != null) {
             if(stmt.name.lexeme.equals(stmt.superclass.name.lexeme)) {
-                Lox.error(stmt.superclass.name, "A class can't inherit from itself.");
+                errors.error(stmt.superclass.name, "A class can't inherit from itself.");
             }
 
             currentClass = ClassType.SUBCLASS;
             resolve(stmt.superclass);
 
             beginScope();
-            scopes.peek().put("super", true);
+            stmt.superSlot = defineImplicit("super");
         }
 
-        beginScope();
-        scopes.peek().put("this", true);
-
         for (Expr.Function method : stmt.methods) {
             FunctionType declaration = FunctionType.METHOD;
             if(method.name.lexeme.equals("init")) {
@@ -288,8 +456,6 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
             resolveFunction(method, declaration);
         }
 
-        endScope();
-
         if (stmt.superclass != null) endScope();
 
         currentClass = enclosingClass;
@@ -303,9 +469,28 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         return null;
     }
 
+    @Override
+    public Void visitForStmt(Stmt.For stmt) {
+        // The initializer's variable is scoped to the loop.
+        beginScope();
+        if(stmt.initializer != null) resolve(stmt.initializer);
+        if(stmt.condition != null) resolve(stmt.condition);
+
+        boolean previousLoop = inLoop;
+        inLoop = true;
+        resolve(stmt.body);
+        inLoop = previousLoop;
+
+        if(stmt.increment != null) resolve(stmt.increment);
+        endScope();
+
+        return null;
+    }
+
     @Override
     public Void visitFunctionStmt(Stmt.Function stmt) {
-        declare(stmt.name);
+        stmt.access = declaredAccess();
+        stmt.slot = declare(stmt.name, stmt);
         define(stmt.name);
 
         resolveFunction(stmt, FunctionType.FUNCTION);
@@ -331,7 +516,7 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         TokenType type = stmt.keyword.type;
         if(type == TokenType.RETURN) {
             if(currentFunction == FunctionType.NONE) {
-                Lox.error(stmt.keyword, "Can't return from top-level code.");
+                errors.error(stmt.keyword, "Can't return from top-level code.");
             }
 //            else hasReturned = true;
         }
@@ -339,12 +524,12 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
                   type == TokenType.CONTINUE) &&
                   !inLoop) {
             String typeName = type == TokenType.BREAK ? "break" : "continue";
-            Lox.error(stmt.keyword, "Can't " + typeName + " from non-loop code.");
+            errors.error(stmt.keyword, "Can't " + typeName + " from non-loop code.");
         }
 
         if (stmt.value != null) {
             if(currentFunction == FunctionType.INITIALIZER) {
-                Lox.error(stmt.keyword,
+                errors.error(stmt.keyword,
                           "Can't return a value from an initializer.");
             }
 
@@ -356,7 +541,8 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitVarStmt(Stmt.Var stmt) {
-        declare(stmt.name);
+        stmt.access = declaredAccess();
+        stmt.slot = declare(stmt.name, stmt);
         if(stmt.initializer != null) {
             resolve(stmt.initializer);
         }
@@ -0,0 +1,84 @@
+package com.craftinginterpreters.lox;
+
+// A string built by +. Short results are plain Strings, since copying
+// them is cheap. A longer one keeps its characters as a prefix of a
+// StringBuilder, which the next concatenation onto it appends to in
+// place instead of copying, so building a string in a loop is linear.
+// Several ropes can share one builder: each is the prefix up to its own
+// length, and only the longest may still append. The String is made
+// when it's first needed (printing, equality, hashing) and then kept.
+final class Rope implements CharSequence {
+    // Results shorter than this are Strings.
+    static final int FLAT_LIMIT = 256;
+
+    private final StringBuilder builder;
+    private final int length;
+    private String flat;
+
+    private Rope(StringBuilder builder) {
+        this.builder = builder;
+        this.length = builder.length();
+    }
+
+    // Lox strings are Strings or Ropes.
+    static boolean isString(Object object) {
+        return object instanceof CharSequence;
+    }
+
+    static Object concat(CharSequence left, CharSequence right) {
+        int length = left.length() + right.length();
+        if(length < FLAT_LIMIT) return left.toString() + right;
+
+        // The right operand may share the builder being appended to.
+        String tail = right.toString();
+
+        if(left instanceof Rope) {
+            Rope rope = (Rope)left;
+            if(rope.builder.length() == rope.length) {
+                return new Rope(rope.builder.append(tail));
+            }
+        }
+
+        StringBuilder builder = new StringBuilder(
+                Math.max(length, 2 * left.length()));
+        if(left instanceof Rope) {
+            builder.append(((Rope)left).builder, 0, left.length());
+        } else {
+            builder.append(left);
+        }
+        return new Rope(builder.append(tail));
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if(index >= length) throw new IndexOutOfBoundsException(index);
+        return builder.charAt(index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return toString().subSequence(start, end);
+    }
+
+    @Override
+    public String toString() {
+        if(flat == null) flat = builder.substring(0, length);
+        return flat;
+    }
+
+    @Override
+    public boolean equals(Object object) {
+        if(!(object instanceof CharSequence)) return false;
+        return toString().equals(object.toString());
+    }
+
+    @Override
+    public int hashCode() {
+        return toString().hashCode();
+    }
+}
@@ -1,13 +1,28 @@
 package com.craftinginterpreters.lox;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 import static com.craftinginterpreters.lox.TokenType.*;
 
-class Scanner {
+// Reads the source through a window that only has to hold the current
+// lexeme, and hands tokens to the Parser as it asks for them, so neither
+// the whole source nor the whole token list is ever in memory.
+//
+// A source can also be scanned in place as UTF-8 bytes, like a mapped
+// file. Only identifier, number and string lexemes are then decoded.
+class Scanner implements TokenStream {
+    private static final int BUFFER_SIZE = 8192;
+
     private static final Map<String, TokenType> keywords;
     static {
         keywords = new HashMap<>();
@@ -35,61 +50,129 @@ class Scanner {
         keywords.put("while",    WHILE);
     }
 
-    private final String source;
-    private final List<Token> tokens = new ArrayList<>();
+    // Tokens whose lexeme is always the same share it.
+    private static final Map<TokenType, String> lexemes =
+            new EnumMap<>(TokenType.class);
+    static {
+        String[] symbols = {
+            "(", ")", "{", "}", ",", ".", "-", "+", ";", "*", "?", ":",
+            "/", "!", "!=", "=", "==", "<", "<=", ">", ">="
+        };
+        TokenType[] types = {
+            LEFT_PAREN, RIGHT_PAREN, LEFT_BRACE, RIGHT_BRACE, COMMA, DOT,
+            MINUS, PLUS, SEMICOLON, STAR, QUESTION, COLON, SLASH,
+            BANG, BANG_EQUAL, EQUAL, EQUAL_EQUAL, LESS, LESS_EQUAL,
+            GREATER, GREATER_EQUAL
+        };
+        for(int i = 0; i < types.length; ++i) {
+            lexemes.put(types[i], symbols[i]);
+        }
+    }
+
+    private final ErrorReporter errors;
+    private final Symbols symbols = symbols();
+    private final Reader reader;
+    // The whole source as UTF-8, instead of reader and buffer.
+    private final ByteBuffer bytes;
+    // buffer[0, limit) holds the source from the start of the current
+    // lexeme on.
+    private char[] buffer;
+    private int limit = 0;
+    // true: the reader has no more input
+    private boolean drained = false;
     private int start = 0;
     private int current = 0;
     private int line = 1;
 
-    Scanner(String source) {
-        this.source = source;
+    Scanner(String source, ErrorReporter errors) {
+        this(new StringReader(source), errors);
+    }
+
+    Scanner(Reader reader, ErrorReporter errors) {
+        this.errors = errors;
+        this.reader = reader;
+        this.bytes = null;
+        this.buffer = new char[BUFFER_SIZE];
+    }
+
+    // Positions in bytes are absolute, so nothing is ever copied out of it
+    // but the lexemes.
+    Scanner(ByteBuffer bytes, ErrorReporter errors) {
+        this.errors = errors;
+        this.reader = null;
+        this.bytes = bytes;
+    }
+
+    // So a keyword's symbol is the map's own key.
+    private static Symbols symbols() {
+        Symbols symbols = new Symbols();
+        for(String keyword : keywords.keySet()) symbols.intern(keyword);
+        return symbols;
     }
 
     List<Token> scanTokens() {
+        List<Token> tokens = new ArrayList<>();
+        Token token;
+        do {
+            token = next();
+            tokens.add(token);
+        } while(token.type != EOF);
+
+        return tokens;
+    }
+
+    // Keeps returning EOF at the end of the source.
+    @Override
+    public Token next() {
         while(!isAtEnd()) {
             // We are at the beginning of the next lexeme.
             start = current;
-            scanToken();
+            Token token = scanToken();
+            if(token != null) return token;
         }
 
-        tokens.add(new Token(EOF, "", null, line));
-
-        return tokens;
+        start = current;
+        return new Token(EOF, "", null, line);
     }
 
-    private void scanToken() {
+    // Returns null for whitespace, comments and errors.
+    private Token scanToken() {
         char c = advance();
         switch(c) {
-            case '(': addToken(LEFT_PAREN); break;
-            case ')': addToken(RIGHT_PAREN); break;
-            case '{': addToken(LEFT_BRACE); break;
-            case '}': addToken(RIGHT_BRACE); break;
-            case ',': addToken(COMMA); break;
-            case '.': addToken(DOT); break;
-            case '-': addToken(MINUS); break;
-            case '+': addToken(PLUS); break;
-            case ';': addToken(SEMICOLON); break;
-            case '*': addToken(STAR); break;
+            case '(': return token(LEFT_PAREN);
+            case ')': return token(RIGHT_PAREN);
+            case '{': return token(LEFT_BRACE);
+            case '}': return token(RIGHT_BRACE);
+            case ',': return token(COMMA);
+            case '.': return token(DOT);
+            case '-': return token(MINUS);
+            case '+': return token(PLUS);
+            case ';': return token(SEMICOLON);
+            case '*': return token(STAR);
 
             // Ternary operator
-            case '?': addToken(QUESTION); break;
-            case ':': addToken(COLON); break;
+            case '?': return token(QUESTION);
+            case ':': return token(COLON);
 
             // one or two character tokens
-            case '!': addToken(match('=') ? BANG_EQUAL : BANG); break;
-            case '=': addToken(match('=') ? EQUAL_EQUAL: EQUAL); break;
-            case '<': addToken(match('=') ? LESS_EQUAL : LESS); break;
-            case '>': addToken(match('=') ? GREATER_EQUAL : GREATER); break;
+            case '!': return token(match('=') ? BANG_EQUAL : BANG);
+            case '=': return token(match('=') ? EQUAL_EQUAL: EQUAL);
+            case '<': return token(match('=') ? LESS_EQUAL : LESS);
+            case '>': return token(match('=') ? GREATER_EQUAL : GREATER);
 
             // single line comments
             case '/':
                 if(match('/')) {
-                    // A comment goes until the end of the line.
-                    while(peek() != '\n' && !isAtEnd()) advance();
+                    // A comment goes until the end of the line. Nothing
+                    // of it is kept, so it needn't fit in the buffer.
+                    while(peek() != '\n' && !isAtEnd()) {
+                        advance();
+                        start = current;
+                    }
                 } else if (match('*')){
                     blockComment();
                 } else {
-                    addToken(SLASH);
+                    return token(SLASH);
                 }
                 break;
 
@@ -103,22 +186,29 @@ class Scanner {
                 line++;
                 break;
 
-            case '"': string(); break;
+            case '"': return string();
 
             default:
                 if(isDigit(c)) {
-                    number();
+                    return number();
                 } else if(isAlpha(c)) {
-                    identifier();
+                    return identifier();
+                } else if(bytes != null && (c & 0xc0) == 0x80) {
+                    // The rest of a UTF-8 sequence whose first byte has
+                    // been reported already.
                 } else {
-                    Lox.error(line, "Unexpected character.");
+                    errors.error(line, "Unexpected character.");
                 }
                 break;
         }
+
+        return null;
     }
 
     private void blockComment() {
         while(!isAtEnd()) {
+            start = current;
+
             if(match('/') && peek() == '*') {
                 advance();
                 blockComment();
@@ -133,19 +223,21 @@ class Scanner {
         }
     }
 
-    private void identifier() {
+    private Token identifier() {
         while(isAlphaNumeric(peek())) advance();
 
         // See if the identifier is a reserved word.
-        String text = source.substring(start, current);
+        String text = bytes != null
+                ? symbols.intern(bytes, start, current - start)
+                : symbols.intern(buffer, start, current - start);
 
         TokenType type = keywords.get(text);
         if(type == null) type = IDENTIFIER;
 
-        addToken(type);
+        return new Token(type, text, null, line);
     }
 
-    private void number() {
+    private Token number() {
         while(isDigit(peek())) advance();
 
         // Look for a fractional part.
@@ -156,11 +248,11 @@ class Scanner {
             while(isDigit(peek())) advance();
         }
 
-        addToken(NUMBER,
-                 Double.parseDouble(source.substring(start, current)));
+        String text = lexeme();
+        return new Token(NUMBER, text, Double.parseDouble(text), line);
     }
 
-    private void string() {
+    private Token string() {
         // doesn't handle escaping the '"', example: "\"inner string\""
         while(peek() != '"' && !isAtEnd()) {
             if(peek() == '\n') line++;
@@ -169,23 +261,23 @@ class Scanner {
 
         // Unterminated string.
         if(isAtEnd()) {
-            Lox.error(line, "Unterminated string.");
-            return;
+            errors.error(line, "Unterminated string.");
+            return null;
         }
 
         // The closing ".
         advance();
 
         // Trim the surrounding quotes.
-        String value = source.substring(start + 1, current - 1);
+        String value = slice(start + 1, current - 1);
         // saves string with current line
         // for multi-line it means the final line
-        addToken(STRING, value);
+        return new Token(STRING, lexeme(), value, line);
     }
 
     private boolean match(char expected) {
         if(isAtEnd()) return false;
-        if(source.charAt(current) != expected) return false;
+        if(charAt(current) != expected) return false;
 
         current++;
         return true;
@@ -193,13 +285,13 @@ class Scanner {
 
     private char peek() {
         if(isAtEnd()) return '\0';
-        return source.charAt(current);
+        return charAt(current);
     }
 
     // Makes it clearer that the scanner only looks ahead at most two characters
     private char peekNext() {
-        if(current + 1 >= source.length()) return '\0';
-        return source.charAt(current + 1);
+        if(!available(1)) return '\0';
+        return charAt(current + 1);
     }
 
     private boolean isAlpha(char c) {
@@ -217,21 +309,73 @@ class Scanner {
     }
 
     private boolean isAtEnd() {
-        return current >= source.length();
+        return !available(0);
     }
 
     private char advance() {
-        current++;
-        return source.charAt(current - 1);
+        available(0);
+        return charAt(current++);
     }
 
-    private void addToken(TokenType type) {
-        addToken(type, null);
+    // Bytes past ASCII come out as chars no token starts with.
+    private char charAt(int index) {
+        if(bytes != null) return (char)(bytes.get(index) & 0xff);
+        return buffer[index];
+    }
+
+    // Reads until the buffer holds the character offset characters past
+    // current. Returns false if the source ends before it.
+    private boolean available(int offset) {
+        if(bytes != null) return current + offset < bytes.limit();
+
+        while(current + offset >= limit) {
+            if(drained) return false;
+            fill();
+        }
+
+        return true;
     }
 
-    private void addToken(TokenType type, Object literal) {
-        String text = source.substring(start, current);
+    private void fill() {
+        // Drop what is before the current lexeme, and grow only when the
+        // lexeme itself fills the buffer.
+        if(start > 0) {
+            System.arraycopy(buffer, start, buffer, 0, limit - start);
+            limit -= start;
+            current -= start;
+            start = 0;
+        }
+        if(limit == buffer.length) {
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        }
+
+        try {
+            int read = reader.read(buffer, limit, buffer.length - limit);
+            if(read == -1) {
+                drained = true;
+            } else {
+                limit += read;
+            }
+        } catch(IOException error) {
+            // The source ends here, with nothing after it reported.
+            errors.unreadable(error);
+            drained = true;
+        }
+    }
+
+    private String lexeme() {
+        return slice(start, current);
+    }
+
+    private String slice(int from, int to) {
+        if(bytes == null) return new String(buffer, from, to - from);
+
+        byte[] utf8 = new byte[to - from];
+        bytes.get(from, utf8);
+        return new String(utf8, StandardCharsets.UTF_8);
+    }
 
-        tokens.add(new Token(type, text, literal, line));
+    private Token token(TokenType type) {
+        return new Token(type, lexemes.get(type), null, line);
     }
 }
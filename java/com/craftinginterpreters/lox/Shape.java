@@ -0,0 +1,50 @@
+package com.craftinginterpreters.lox;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// The layout of an instance's fields: which slot of the instance's array
+// each field name lives in. Instances that gained the same fields in the
+// same order share one Shape, so a Shape identity check is enough to know
+// where a field is.
+//
+// Each Interpreter has its own empty Shape that its instances start from,
+// so the shapes a program made go away with it, and programs a daemon
+// runs at the same time don't share any.
+class Shape {
+    private final Map<String, Integer> slots;
+    // Shapes reached from this one by adding a field.
+    private final Map<String, Shape> transitions = new HashMap<>();
+
+    // A shape with no fields.
+    Shape() {
+        this(new HashMap<>());
+    }
+
+    private Shape(Map<String, Integer> slots) {
+        this.slots = slots;
+    }
+
+    int size() {
+        return slots.size();
+    }
+
+    // The field's slot, or -1 if instances of this shape don't have it.
+    int slotOf(String name) {
+        Integer slot = slots.get(name);
+        return slot == null ? -1 : slot;
+    }
+
+    // The shape after adding a field, which goes in slot size().
+    Shape with(String name) {
+        Shape shape = transitions.get(name);
+        if(shape == null) {
+            Map<String, Integer> next = new HashMap<>(slots);
+            next.put(name, slots.size());
+            shape = new Shape(next);
+            transitions.put(name, shape);
+        }
+
+        return shape;
+    }
+}
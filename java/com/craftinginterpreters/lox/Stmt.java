@@ -7,6 +7,7 @@ abstract class Stmt {
     R visitBlockStmt(Block stmt);
     R visitClassStmt(Class stmt);
     R visitExpressionStmt(Expression stmt);
+    R visitForStmt(For stmt);
     R visitFunctionStmt(Function stmt);
     R visitIfStmt(If stmt);
     R visitPrintStmt(Print stmt);
@@ -41,6 +42,10 @@ abstract class Stmt {
     final Token name;
     final Expr.Variable superclass;
     final List<Expr.Function> methods;
+    Resolver.Access access = Resolver.Access.GLOBAL;
+    int slot = -1;
+    boolean captured;
+    int superSlot = -1;
   }
   static class Expression extends Stmt {
     Expression(Expr expression) {
@@ -54,6 +59,24 @@ abstract class Stmt {
 
     final Expr expression;
   }
+  static class For extends Stmt {
+    For(Stmt initializer, Expr condition, Expr increment, Stmt body) {
+      this.initializer = initializer;
+      this.condition = condition;
+      this.increment = increment;
+      this.body = body;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitForStmt(this);
+    }
+
+    final Stmt initializer;
+    final Expr condition;
+    final Expr increment;
+    final Stmt body;
+  }
   static class Function extends Stmt {
     Function(Token name, List<Token> params, List<Stmt> body) {
       this.name = name;
@@ -69,6 +92,13 @@ abstract class Stmt {
     final Token name;
     final List<Token> params;
     final List<Stmt> body;
+    Resolver.Access access = Resolver.Access.GLOBAL;
+    int slot = -1;
+    boolean captured;
+    int frameSize;
+    int[] upvalues;
+    int[] capturedParams;
+    Jit.Profile profile = new Jit.Profile();
   }
   static class If extends Stmt {
     If(Expr condition, Stmt thenBranch, Stmt elseBranch) {
@@ -125,6 +155,9 @@ abstract class Stmt {
 
     final Token name;
     final Expr initializer;
+    Resolver.Access access = Resolver.Access.GLOBAL;
+    int slot = -1;
+    boolean captured;
   }
   static class While extends Stmt {
     While(Expr condition, Stmt body) {
@@ -142,4 +175,6 @@ abstract class Stmt {
   }
 
   abstract <R> R accept(Visitor<R> visitor);
+
+  int line;
 }
@@ -0,0 +1,115 @@
+package com.craftinginterpreters.lox;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// A symbol table: one canonical String for every name scanned. The
+// Scanner looks names up by their characters in the source, so a name
+// seen before allocates nothing. Every token for a name then carries the
+// same String, and the maps names are looked up in (a Shape's slots, a
+// class's methods, Globals and the Resolver's scopes) find it by identity
+// instead of comparing characters. At runtime that mostly means method
+// lookups that miss the call site's cache; field accesses rarely get past
+// their PropertyCache to a Shape's map.
+//
+// Each Scanner, and each cached program read, has a table of its own, so
+// nothing is shared between programs loading in parallel and a finished
+// program's names can be collected. Names from different tables still
+// compare equal, just not by identity.
+final class Symbols {
+    // Open addressing, kept at most half full.
+    private String[] table = new String[256];
+    private int count = 0;
+
+    Symbols() {
+        // Names the interpreter itself looks up.
+        intern("init");
+        intern("clock");
+    }
+
+    String intern(String name) {
+        int index = find(name.hashCode(), name, null, null, 0, name.length());
+        if(table[index] != null) return table[index];
+        return add(index, name);
+    }
+
+    String intern(char[] chars, int start, int length) {
+        int hash = 0;
+        for(int i = start; i < start + length; ++i) {
+            hash = 31 * hash + chars[i];
+        }
+
+        int index = find(hash, null, chars, null, start, length);
+        if(table[index] != null) return table[index];
+        return add(index, new String(chars, start, length));
+    }
+
+    // For ASCII names in UTF-8 source.
+    String intern(ByteBuffer bytes, int start,
+                                      int length) {
+        int hash = 0;
+        for(int i = start; i < start + length; ++i) {
+            hash = 31 * hash + (bytes.get(i) & 0xff);
+        }
+
+        int index = find(hash, null, null, bytes, start, length);
+        if(table[index] != null) return table[index];
+
+        byte[] ascii = new byte[length];
+        bytes.get(start, ascii);
+        return add(index, new String(ascii, StandardCharsets.ISO_8859_1));
+    }
+
+    // The slot holding the symbol with these characters, which come from
+    // exactly one of name, chars and bytes, or the empty slot it belongs
+    // in.
+    private int find(int hash, String name, char[] chars,
+                            ByteBuffer bytes, int start, int length) {
+        int mask = table.length - 1;
+        for(int index = hash & mask; ; index = (index + 1) & mask) {
+            String symbol = table[index];
+            if(symbol == null) return index;
+            if(symbol.hashCode() != hash || symbol.length() != length) {
+                continue;
+            }
+            if(name != null && symbol.equals(name)) return index;
+            if(chars != null && matches(symbol, chars, start)) return index;
+            if(bytes != null && matches(symbol, bytes, start)) return index;
+        }
+    }
+
+    private static boolean matches(String symbol, char[] chars, int start) {
+        for(int i = 0; i < symbol.length(); ++i) {
+            if(symbol.charAt(i) != chars[start + i]) return false;
+        }
+        return true;
+    }
+
+    private static boolean matches(String symbol, ByteBuffer bytes,
+                                   int start) {
+        for(int i = 0; i < symbol.length(); ++i) {
+            if(symbol.charAt(i) != (bytes.get(start + i) & 0xff)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String add(int index, String symbol) {
+        table[index] = symbol;
+        if(++count * 2 > table.length) grow();
+        return symbol;
+    }
+
+    private void grow() {
+        String[] old = table;
+        table = new String[old.length * 2];
+        int mask = table.length - 1;
+        for(String symbol : old) {
+            if(symbol == null) continue;
+            int index = symbol.hashCode() & mask;
+            while(table[index] != null) index = (index + 1) & mask;
+            table[index] = symbol;
+        }
+    }
+}
@@ -0,0 +1,7 @@
+package com.craftinginterpreters.lox;
+
+// Tokens as the Parser pulls them, one at a time. Once it has returned
+// EOF, next() keeps returning EOF.
+interface TokenStream {
+    Token next();
+}
@@ -0,0 +1,635 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// Executes bytecode produced by the Compiler with an explicit value
+// stack and call-frame array, instead of recursing through the AST.
+class VM {
+    private static final int FRAMES_MAX = 1024;
+    private static final int STACK_MAX = FRAMES_MAX * 256;
+
+    private static class CallFrame {
+        Obj.Closure closure;
+        int ip;
+        // Stack index of the frame's slot zero.
+        int slots;
+    }
+
+    final ErrorReporter errors;
+    // Where print statements write.
+    private final Output out;
+    private final Object[] stack = new Object[STACK_MAX];
+    private int stackTop = 0;
+    private final CallFrame[] frames = new CallFrame[FRAMES_MAX];
+    private int frameCount = 0;
+
+    // Globals are resolved by the Compiler to indexes into these arrays;
+    // UNDEFINED marks a name that is used but not yet defined.
+    private static final Object UNDEFINED = new Object();
+    private final Map<String, Integer> globalSlots = new HashMap<>();
+    private String[] globalNames = new String[64];
+    private Object[] globalValues = new Object[64];
+    // Sorted by stack slot, highest first.
+    private Obj.Upvalue openUpvalues = null;
+
+    VM(ErrorReporter errors, Output out) {
+        this.errors = errors;
+        this.out = out;
+
+        for(int i = 0; i < FRAMES_MAX; ++i) {
+            frames[i] = new CallFrame();
+        }
+
+        globalValues[globalSlot("clock")] = new Obj.Native(0, (stack, args) ->
+            (double)System.currentTimeMillis() / 1000.0);
+    }
+
+    int globalSlot(String name) {
+        Integer slot = globalSlots.get(name);
+        if(slot != null) return slot;
+
+        slot = globalSlots.size();
+        if(slot == globalValues.length) {
+            globalNames = Arrays.copyOf(globalNames, slot * 2);
+            globalValues = Arrays.copyOf(globalValues, slot * 2);
+        }
+
+        globalSlots.put(name, slot);
+        globalNames[slot] = name;
+        globalValues[slot] = UNDEFINED;
+        return slot;
+    }
+
+    void interpret(Obj.Function script) {
+        Obj.Closure closure = new Obj.Closure(script);
+        push(closure);
+
+        try {
+            call(closure, 0);
+            run();
+        } catch(RuntimeError error) {
+            errors.runtimeError(error);
+            resetStack();
+        }
+    }
+
+    private void resetStack() {
+        for(int i = 0; i < stackTop; ++i) stack[i] = null;
+        stackTop = 0;
+        frameCount = 0;
+        openUpvalues = null;
+    }
+
+    private void push(Object value) {
+        stack[stackTop++] = value;
+    }
+
+    private Object pop() {
+        Object value = stack[--stackTop];
+        stack[stackTop] = null;
+        return value;
+    }
+
+    private Object peek(int distance) {
+        return stack[stackTop - 1 - distance];
+    }
+
+    // Reports an error at the instruction the current frame last read.
+    private RuntimeError error(String message) {
+        CallFrame frame = frames[frameCount - 1];
+        int line = frame.closure.function.chunk.getLine(frame.ip - 1);
+        return new RuntimeError(line, message);
+    }
+
+    private static boolean isFalsey(Object value) {
+        return value == null ||
+               (value instanceof Boolean && !(Boolean)value);
+    }
+
+    private void call(Obj.Closure closure, int argCount) {
+        if(argCount != closure.function.arity) {
+            throw error("Expected " + closure.function.arity +
+                " arguments but got " + argCount + ".");
+        }
+
+        if(frameCount == FRAMES_MAX) {
+            throw error("Stack overflow.");
+        }
+
+        CallFrame frame = frames[frameCount++];
+        frame.closure = closure;
+        frame.ip = 0;
+        frame.slots = stackTop - argCount - 1;
+    }
+
+    private void callValue(Object callee, int argCount) {
+        if(callee instanceof Obj.Closure) {
+            call((Obj.Closure)callee, argCount);
+            return;
+        }
+
+        if(callee instanceof Obj.BoundMethod) {
+            Obj.BoundMethod bound = (Obj.BoundMethod)callee;
+            stack[stackTop - argCount - 1] = bound.receiver;
+            call(bound.method, argCount);
+            return;
+        }
+
+        if(callee instanceof Obj.Class) {
+            Obj.Class klass = (Obj.Class)callee;
+            stack[stackTop - argCount - 1] = new Obj.Instance(klass);
+            if(klass.initializer != null) {
+                call(klass.initializer, argCount);
+            } else if(argCount != 0) {
+                throw error("Expected 0 arguments but got " +
+                            argCount + ".");
+            }
+            return;
+        }
+
+        if(callee instanceof Obj.Native) {
+            Obj.Native fn = (Obj.Native)callee;
+            if(argCount != fn.arity) {
+                throw error("Expected " + fn.arity +
+                    " arguments but got " + argCount + ".");
+            }
+
+            Object result = fn.function.call(stack, stackTop - argCount);
+            for(int i = 0; i <= argCount; ++i) pop();
+            push(result);
+            return;
+        }
+
+        throw error("Can only call functions and classes.");
+    }
+
+    private void invokeFromClass(Obj.Class klass, String name,
+                                 int argCount) {
+        Obj.Closure method = klass.methods.get(name);
+        if(method == null) {
+            throw error("Undefined property '" + name + "'.");
+        }
+
+        call(method, argCount);
+    }
+
+    private void invoke(String name, int argCount) {
+        Object receiver = peek(argCount);
+        if(!(receiver instanceof Obj.Instance)) {
+            throw error("Only instances have properties.");
+        }
+
+        Obj.Instance instance = (Obj.Instance)receiver;
+
+        // A field holding a callable shadows the method.
+        Object field = instance.fields.get(name);
+        if(field != null || instance.fields.containsKey(name)) {
+            stack[stackTop - argCount - 1] = field;
+            callValue(field, argCount);
+            return;
+        }
+
+        invokeFromClass(instance.klass, name, argCount);
+    }
+
+    private Obj.BoundMethod bindMethod(Obj.Class klass, String name) {
+        Obj.Closure method = klass.methods.get(name);
+        if(method == null) {
+            throw error("Undefined property '" + name + "'.");
+        }
+
+        return new Obj.BoundMethod(peek(0), method);
+    }
+
+    private Obj.Upvalue captureUpvalue(int location) {
+        Obj.Upvalue prev = null;
+        Obj.Upvalue upvalue = openUpvalues;
+        while(upvalue != null && upvalue.location > location) {
+            prev = upvalue;
+            upvalue = upvalue.next;
+        }
+
+        if(upvalue != null && upvalue.location == location) return upvalue;
+
+        Obj.Upvalue created = new Obj.Upvalue(location, upvalue);
+        if(prev == null) {
+            openUpvalues = created;
+        } else {
+            prev.next = created;
+        }
+
+        return created;
+    }
+
+    private void closeUpvalues(int last) {
+        while(openUpvalues != null && openUpvalues.location >= last) {
+            Obj.Upvalue upvalue = openUpvalues;
+            upvalue.closed = stack[upvalue.location];
+            upvalue.location = -1;
+            openUpvalues = upvalue.next;
+        }
+    }
+
+    private Object readUpvalue(Obj.Upvalue upvalue) {
+        if(upvalue.location >= 0) return stack[upvalue.location];
+        return upvalue.closed;
+    }
+
+    private void writeUpvalue(Obj.Upvalue upvalue, Object value) {
+        if(upvalue.location >= 0) {
+            stack[upvalue.location] = value;
+        } else {
+            upvalue.closed = value;
+        }
+    }
+
+    private void checkNumberOperands(Object left, Object right) {
+        if(left instanceof Double && right instanceof Double) return;
+        throw error("Operands must be numbers.");
+    }
+
+    private static int readInt(byte[] code, int ip) {
+        return ((code[ip] & 0xff) << 24) | ((code[ip + 1] & 0xff) << 16) |
+               ((code[ip + 2] & 0xff) << 8) | (code[ip + 3] & 0xff);
+    }
+
+    private void run() {
+        Object[] stack = this.stack;
+        CallFrame frame = frames[frameCount - 1];
+        byte[] code = frame.closure.function.chunk.code;
+        Object[] constants = frame.closure.function.chunk.constants;
+        int ip = frame.ip;
+
+        for(;;) {
+            byte instruction = code[ip++];
+            switch(instruction) {
+                case OpCode.CONSTANT: {
+                    int index = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2;
+                    stack[stackTop++] = constants[index];
+                    break;
+                }
+                case OpCode.NIL: stack[stackTop++] = null; break;
+                case OpCode.TRUE: stack[stackTop++] = true; break;
+                case OpCode.FALSE: stack[stackTop++] = false; break;
+                case OpCode.POP: stack[--stackTop] = null; break;
+
+                case OpCode.GET_LOCAL: {
+                    int slot = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2;
+                    stack[stackTop++] = stack[frame.slots + slot];
+                    break;
+                }
+                case OpCode.SET_LOCAL: {
+                    int slot = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2;
+                    stack[frame.slots + slot] = stack[stackTop - 1];
+                    break;
+                }
+                case OpCode.GET_GLOBAL: {
+                    int slot = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2;
+                    Object value = globalValues[slot];
+                    if(value == UNDEFINED) {
+                        frame.ip = ip;
+                        throw error("Undefined variable '" +
+                                    globalNames[slot] + "'.");
+                    }
+                    stack[stackTop++] = value;
+                    break;
+                }
+                case OpCode.DEFINE_GLOBAL: {
+                    int slot = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2;
+                    globalValues[slot] = stack[stackTop - 1];
+                    stack[--stackTop] = null;
+                    break;
+                }
+                case OpCode.SET_GLOBAL: {
+                    int slot = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2;
+                    if(globalValues[slot] == UNDEFINED) {
+                        frame.ip = ip;
+                        throw error("Undefined variable '" +
+                                    globalNames[slot] + "'.");
+                    }
+                    globalValues[slot] = stack[stackTop - 1];
+                    break;
+                }
+                case OpCode.GET_UPVALUE: {
+                    int slot = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2;
+                    stack[stackTop++] = readUpvalue(frame.closure.upvalues[slot]);
+                    break;
+                }
+                case OpCode.SET_UPVALUE: {
+                    int slot = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2;
+                    writeUpvalue(frame.closure.upvalues[slot], stack[stackTop - 1]);
+                    break;
+                }
+                case OpCode.GET_PROPERTY: {
+                    int index = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2;
+                    frame.ip = ip;
+                    Object object = stack[stackTop - 1];
+                    if(!(object instanceof Obj.Instance)) {
+                        throw error("Only instances have properties.");
+                    }
+
+                    Obj.Instance instance = (Obj.Instance)object;
+                    String name = (String)constants[index];
+                    Object value = instance.fields.get(name);
+                    if(value != null || instance.fields.containsKey(name)) {
+                        stack[stackTop - 1] = value;
+                        break;
+                    }
+
+                    stack[stackTop - 1] = bindMethod(instance.klass, name);
+                    break;
+                }
+                case OpCode.SET_PROPERTY: {
+                    int index = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2;
+                    Object object = stack[stackTop - 2];
+                    if(!(object instanceof Obj.Instance)) {
+                        frame.ip = ip;
+                        throw error("Only instances have fields.");
+                    }
+
+                    Object value = pop();
+                    ((Obj.Instance)object).fields.put(
+                        (String)constants[index], value);
+                    stack[stackTop - 1] = value;
+                    break;
+                }
+                case OpCode.GET_SUPER: {
+                    int index = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2;
+                    frame.ip = ip;
+                    Obj.Class superclass = (Obj.Class)pop();
+                    stack[stackTop - 1] = bindMethod(superclass,
+                        (String)constants[index]);
+                    break;
+                }
+
+                case OpCode.EQUAL: {
+                    Object b = pop();
+                    stack[stackTop - 1] =
+                        Interpreter.isEqual(stack[stackTop - 1], b);
+                    break;
+                }
+                case OpCode.NOT_EQUAL: {
+                    Object b = pop();
+                    stack[stackTop - 1] =
+                        !Interpreter.isEqual(stack[stackTop - 1], b);
+                    break;
+                }
+                case OpCode.GREATER: {
+                    Object b = stack[stackTop - 1];
+                    Object a = stack[stackTop - 2];
+                    if(!(a instanceof Double && b instanceof Double)) {
+                        frame.ip = ip;
+                        checkNumberOperands(a, b);
+                    }
+                    stack[--stackTop] = null;
+                    stack[stackTop - 1] = (double)a > (double)b;
+                    break;
+                }
+                case OpCode.GREATER_EQUAL: {
+                    Object b = stack[stackTop - 1];
+                    Object a = stack[stackTop - 2];
+                    if(!(a instanceof Double && b instanceof Double)) {
+                        frame.ip = ip;
+                        checkNumberOperands(a, b);
+                    }
+                    stack[--stackTop] = null;
+                    stack[stackTop - 1] = (double)a >= (double)b;
+                    break;
+                }
+                case OpCode.LESS: {
+                    Object b = stack[stackTop - 1];
+                    Object a = stack[stackTop - 2];
+                    if(!(a instanceof Double && b instanceof Double)) {
+                        frame.ip = ip;
+                        checkNumberOperands(a, b);
+                    }
+                    stack[--stackTop] = null;
+                    stack[stackTop - 1] = (double)a < (double)b;
+                    break;
+                }
+                case OpCode.LESS_EQUAL: {
+                    Object b = stack[stackTop - 1];
+                    Object a = stack[stackTop - 2];
+                    if(!(a instanceof Double && b instanceof Double)) {
+                        frame.ip = ip;
+                        checkNumberOperands(a, b);
+                    }
+                    stack[--stackTop] = null;
+                    stack[stackTop - 1] = (double)a <= (double)b;
+                    break;
+                }
+                case OpCode.ADD: {
+                    Object b = stack[stackTop - 1];
+                    Object a = stack[stackTop - 2];
+                    Object result;
+                    if(a instanceof Double && b instanceof Double) {
+                        result = Interpreter.box((double)a + (double)b);
+                    } else if(Rope.isString(a) || Rope.isString(b)) {
+                        // "string" + 0 = "string0"
+                        result = Interpreter.concat(a, b);
+                    } else {
+                        frame.ip = ip;
+                        throw error(
+                            "Operands must be two numbers or two strings.");
+                    }
+                    stack[--stackTop] = null;
+                    stack[stackTop - 1] = result;
+                    break;
+                }
+                case OpCode.SUBTRACT: {
+                    Object b = stack[stackTop - 1];
+                    Object a = stack[stackTop - 2];
+                    if(!(a instanceof Double && b instanceof Double)) {
+                        frame.ip = ip;
+                        checkNumberOperands(a, b);
+                    }
+                    stack[--stackTop] = null;
+                    stack[stackTop - 1] = Interpreter.box((double)a - (double)b);
+                    break;
+                }
+                case OpCode.MULTIPLY: {
+                    Object b = stack[stackTop - 1];
+                    Object a = stack[stackTop - 2];
+                    if(!(a instanceof Double && b instanceof Double)) {
+                        frame.ip = ip;
+                        checkNumberOperands(a, b);
+                    }
+                    stack[--stackTop] = null;
+                    stack[stackTop - 1] = Interpreter.box((double)a * (double)b);
+                    break;
+                }
+                case OpCode.DIVIDE: {
+                    Object b = stack[stackTop - 1];
+                    Object a = stack[stackTop - 2];
+                    frame.ip = ip;
+                    checkNumberOperands(a, b);
+                    if((double)b == 0) {
+                        throw error("Denominator must be non-zero.");
+                    }
+                    stack[--stackTop] = null;
+                    stack[stackTop - 1] = Interpreter.box((double)a / (double)b);
+                    break;
+                }
+                case OpCode.NOT:
+                    stack[stackTop - 1] = isFalsey(stack[stackTop - 1]);
+                    break;
+                case OpCode.NEGATE: {
+                    Object value = stack[stackTop - 1];
+                    if(!(value instanceof Double)) {
+                        frame.ip = ip;
+                        throw error("Operand must be a number.");
+                    }
+                    stack[stackTop - 1] = Interpreter.box(-(double)value);
+                    break;
+                }
+
+                case OpCode.PRINT:
+                    out.println(Interpreter.stringify(pop()));
+                    break;
+                case OpCode.JUMP: {
+                    int offset = readInt(code, ip);
+                    ip += 4 + offset;
+                    break;
+                }
+                case OpCode.JUMP_IF_FALSE: {
+                    int offset = readInt(code, ip);
+                    ip += 4;
+                    if(isFalsey(stack[stackTop - 1])) ip += offset;
+                    break;
+                }
+                case OpCode.LOOP: {
+                    int offset = readInt(code, ip);
+                    ip += 4 - offset;
+                    break;
+                }
+
+                case OpCode.CALL: {
+                    int argCount = code[ip++] & 0xff;
+                    frame.ip = ip;
+                    callValue(stack[stackTop - 1 - argCount], argCount);
+                    frame = frames[frameCount - 1];
+                    code = frame.closure.function.chunk.code;
+                    constants = frame.closure.function.chunk.constants;
+                    ip = frame.ip;
+                    break;
+                }
+                case OpCode.INVOKE: {
+                    int index = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    int argCount = code[ip + 2] & 0xff;
+                    ip += 3;
+                    frame.ip = ip;
+                    invoke((String)constants[index], argCount);
+                    frame = frames[frameCount - 1];
+                    code = frame.closure.function.chunk.code;
+                    constants = frame.closure.function.chunk.constants;
+                    ip = frame.ip;
+                    break;
+                }
+                case OpCode.SUPER_INVOKE: {
+                    int index = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    int argCount = code[ip + 2] & 0xff;
+                    ip += 3;
+                    frame.ip = ip;
+                    Obj.Class superclass = (Obj.Class)pop();
+                    invokeFromClass(superclass, (String)constants[index],
+                                    argCount);
+                    frame = frames[frameCount - 1];
+                    code = frame.closure.function.chunk.code;
+                    constants = frame.closure.function.chunk.constants;
+                    ip = frame.ip;
+                    break;
+                }
+                case OpCode.CLOSURE: {
+                    int index = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2;
+                    Obj.Function function = (Obj.Function)constants[index];
+                    Obj.Closure closure = new Obj.Closure(function);
+                    stack[stackTop++] = closure;
+                    for(int i = 0; i < closure.upvalues.length; ++i) {
+                        boolean isLocal = code[ip] == 1;
+                        int slot = ((code[ip + 1] & 0xff) << 8) |
+                                   (code[ip + 2] & 0xff);
+                        ip += 3;
+                        if(isLocal) {
+                            closure.upvalues[i] =
+                                captureUpvalue(frame.slots + slot);
+                        } else {
+                            closure.upvalues[i] = frame.closure.upvalues[slot];
+                        }
+                    }
+                    break;
+                }
+                case OpCode.CLOSE_UPVALUE:
+                    closeUpvalues(stackTop - 1);
+                    stack[--stackTop] = null;
+                    break;
+                case OpCode.RETURN: {
+                    Object result = stack[stackTop - 1];
+                    closeUpvalues(frame.slots);
+                    frameCount--;
+
+                    for(int i = frame.slots; i < stackTop; ++i) {
+                        stack[i] = null;
+                    }
+                    stackTop = frame.slots;
+
+                    if(frameCount == 0) return;
+
+                    stack[stackTop++] = result;
+                    frame = frames[frameCount - 1];
+                    code = frame.closure.function.chunk.code;
+                    constants = frame.closure.function.chunk.constants;
+                    ip = frame.ip;
+                    break;
+                }
+
+                case OpCode.CLASS: {
+                    int index = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2;
+                    stack[stackTop++] = new Obj.Class((String)constants[index]);
+                    break;
+                }
+                case OpCode.INHERIT: {
+                    Object superclass = stack[stackTop - 2];
+                    if(!(superclass instanceof Obj.Class)) {
+                        frame.ip = ip;
+                        throw error("Superclass must be a class.");
+                    }
+
+                    Obj.Class subclass = (Obj.Class)stack[stackTop - 1];
+                    subclass.methods.putAll(((Obj.Class)superclass).methods);
+                    subclass.initializer = ((Obj.Class)superclass).initializer;
+                    stack[--stackTop] = null;
+                    break;
+                }
+                case OpCode.METHOD: {
+                    int index = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2;
+                    String name = (String)constants[index];
+                    Obj.Closure method = (Obj.Closure)stack[stackTop - 1];
+                    Obj.Class klass = (Obj.Class)stack[stackTop - 2];
+                    klass.methods.put(name, method);
+                    if(name.equals("init")) klass.initializer = method;
+                    stack[--stackTop] = null;
+                    break;
+                }
+                default:
+                    throw new IllegalStateException(
+                        "Unknown opcode " + instruction + ".");
+            }
+        }
+    }
+}
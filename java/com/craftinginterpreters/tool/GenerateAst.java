@@ -15,43 +15,58 @@ public class GenerateAst {
         }
 
         String outputDir = args[0];
+        // Fields after '|' are not constructor parameters: they are
+        // filled in later by the Resolver, or at runtime. Variables keep
+        // how they are stored (a frame slot, a closure's Cell or a global)
+        // and the slot on the node itself, so nothing outside the tree
+        // refers to resolved nodes and a finished REPL line's tree can be
+        // collected. Every statement also keeps the line it starts on, set
+        // by the Parser, for the profiler.
         defineAst(outputDir, "Expr", Arrays.asList(
-            "Assign     : Token name, Expr value",
-            "Binary     : Expr left, Token operator, Expr right",
-            "Call       : Expr callee, Token paren, List<Expr> arguments",
-            "Get        : Expr object, Token name",
+            "Assign     : Token name, Expr value | Resolver.Access access = Resolver.Access.GLOBAL, int slot",
+            "Binary     : Expr left, Token operator, Expr right | BinaryOp op = BinaryOp.UNINITIALIZED",
+            "Call       : Expr callee, Token paren, List<Expr> arguments | MethodCache methods = new MethodCache()",
+            "Get        : Expr object, Token name | PropertyCache cache = new PropertyCache()",
 
-            "Function   : Token name, List<Token> params, List<Stmt> body",
+            "Function   : Token name, List<Token> params, List<Stmt> body | Resolver.Access access = Resolver.Access.GLOBAL, int slot = -1, boolean captured, int frameSize, int[] upvalues, int[] capturedParams, Jit.Profile profile = new Jit.Profile()",
 
             "Grouping   : Expr expression",
             "Literal    : Object value",
             "Logical    : Expr left, Token operator, Expr right",
-            "Set        : Expr object, Token name, Expr value",
-            "Super      : Token keyword, Token method",
-            "This       : Token keyword",
+            "Set        : Expr object, Token name, Expr value | PropertyCache cache = new PropertyCache()",
+            "Super      : Token keyword, Token method | Resolver.Access access = Resolver.Access.GLOBAL, int slot, Resolver.Access thisAccess = Resolver.Access.GLOBAL, int thisSlot",
+            "This       : Token keyword | Resolver.Access access = Resolver.Access.GLOBAL, int slot",
 
             "Ternary    : Expr first, Token left, Expr second, Token right, Expr third",
 
             "Unary      : Token operator, Expr right",
-            "Variable   : Token name"
+            "Variable   : Token name | Resolver.Access access = Resolver.Access.GLOBAL, int slot"
         ));
 
         defineAst(outputDir, "Stmt", Arrays.asList(
             "Block      : List<Stmt> statements",
-            "Class      : Token name, Expr.Variable superclass, List<Expr.Function> methods",
+            "Class      : Token name, Expr.Variable superclass, List<Expr.Function> methods | Resolver.Access access = Resolver.Access.GLOBAL, int slot = -1, boolean captured, int superSlot = -1",
             "Expression : Expr expression",
-            "Function   : Token name, List<Token> params, List<Stmt> body",
+            "For        : Stmt initializer, Expr condition, Expr increment, Stmt body",
+            "Function   : Token name, List<Token> params, List<Stmt> body | Resolver.Access access = Resolver.Access.GLOBAL, int slot = -1, boolean captured, int frameSize, int[] upvalues, int[] capturedParams, Jit.Profile profile = new Jit.Profile()",
             "If         : Expr condition, Stmt thenBranch, Stmt elseBranch",
             "Print      : Expr expression",
             "Return       : Token keyword, Expr value",
-            "Var        : Token name, Expr initializer",
+            "Var        : Token name, Expr initializer | Resolver.Access access = Resolver.Access.GLOBAL, int slot = -1, boolean captured",
             "While      : Expr condition, Stmt body"
-        ));
+        ), "int line");
     }
 
     private static void defineAst(
             String outputDir, String baseName, List<String> types)
             throws IOException {
+        defineAst(outputDir, baseName, types, null);
+    }
+
+    // baseField is a mutable field every type has.
+    private static void defineAst(
+            String outputDir, String baseName, List<String> types,
+            String baseField) throws IOException {
         String path = outputDir + "/" + baseName + ".java";
         PrintWriter writer = new PrintWriter(path, "UTF-8");
 
@@ -66,14 +81,21 @@ public class GenerateAst {
         // The AST classes.
         for(String type : types) {
             String className = type.split(":")[0].trim();
-            String fields = type.split(":")[1].trim();
-            defineType(writer, baseName, className, fields);
+            String[] fields = type.split(":")[1].split("\\|");
+            String resolved = fields.length > 1 ? fields[1].trim() : null;
+            defineType(writer, baseName, className,
+                       fields[0].trim(), resolved);
         }
 
         // The base accept() method.
         writer.println();
         writer.println("  abstract <R> R accept(Visitor<R> visitor);");
 
+        if(baseField != null) {
+            writer.println();
+            writer.println("  " + baseField + ";");
+        }
+
         writer.println("}");
         writer.close();
     }
@@ -93,7 +115,7 @@ public class GenerateAst {
 
     private static void defineType(
             PrintWriter writer, String baseName,
-            String className, String fieldList) {
+            String className, String fieldList, String resolvedList) {
         writer.println("  static class " + className + " extends " +
                 baseName + " {");
 
@@ -123,6 +145,13 @@ public class GenerateAst {
             writer.println("    final " + field + ";");
         }
 
+        // Mutable fields, written by the Resolver.
+        if(resolvedList != null) {
+            for(String field : resolvedList.split(", ")) {
+                writer.println("    " + field + ";");
+            }
+        }
+
         writer.println("  }");
     }
 }
@@ -13,6 +13,7 @@ final _expectedOutputPattern = RegExp(r"// expect: ?(.*)");
 final _expectedErrorPattern = RegExp(r"// (Error.*)");
 final _errorLinePattern = RegExp(r"// \[((java|c) )?line (\d+)\] (Error.*)");
 final _expectedRuntimeErrorPattern = RegExp(r"// expect runtime error: (.+)");
+final _expectedReadErrorPattern = RegExp(r"// expect read error: (.+)");
 final _syntaxErrorPattern = RegExp(r"\[.*line (\d+)\] (Error.+)");
 final _stackTracePattern = RegExp(r"\[line (\d+)\]");
 final _nonTestPattern = RegExp(r"// nontest");
@@ -118,6 +119,11 @@ bool _runSuite(String name) {
   _expectations = 0;
 
   for (var file in Glob("test/**.lox").listSync()) {
+    // The batch tests only make sense run after the files the batch suite
+    // puts before them.
+    var isBatchTest = p.split(file.path).contains("batch");
+    if (isBatchTest != (name == "jlox_batch")) continue;
+
     _runTest(file.path);
   }
 
@@ -196,6 +202,9 @@ class Test {
   /// If there is an expected runtime error, the line it should occur on.
   int _runtimeErrorLine = 0;
 
+  /// The start of each expected message about a file that can't be read.
+  final _expectedReadErrors = <String>[];
+
   int _expectedExitCode = 0;
 
   /// The list of failure message lines.
@@ -270,6 +279,15 @@ class Test {
         continue;
       }
 
+      match = _expectedReadErrorPattern.firstMatch(line);
+      if (match != null) {
+        _expectedReadErrors.add(match[1]);
+        // If a file can't be read, it should exit with EX_NOINPUT.
+        _expectedExitCode = 66;
+        _expectations++;
+        continue;
+      }
+
       match = _expectedRuntimeErrorPattern.firstMatch(line);
       if (match != null) {
         _runtimeErrorLine = lineNum;
@@ -349,7 +367,13 @@ class Test {
     // Validate that every compile error was expected.
     var foundErrors = <String>{};
     var unexpectedCount = 0;
+    var foundReadErrors = 0;
     for (var line in error_lines) {
+      if (_expectedReadErrors.any(line.startsWith)) {
+        foundReadErrors++;
+        continue;
+      }
+
       var match = _syntaxErrorPattern.firstMatch(line);
       if (match != null) {
         var error = "[${match[1]}] ${match[2]}";
@@ -379,6 +403,11 @@ class Test {
     for (var error in _expectedErrors.difference(foundErrors)) {
       fail("Missing expected error: $error");
     }
+
+    if (foundReadErrors < _expectedReadErrors.length) {
+      fail("Expected ${_expectedReadErrors.length} read errors and got "
+          "$foundReadErrors.");
+    }
   }
 
   void _validateExitCode(int exitCode, List<String> errorLines) {
@@ -589,6 +618,20 @@ void _defineTestSuites() {
     "test/super": "skip",
   };
 
+  // A batch with files that can't be read in the middle: the directory
+  // the batch tests are in, and one that doesn't exist.
+  _allSuites["jlox_batch"] = Suite("jlox_batch", "java", "java", [
+    "-cp",
+    "build/java",
+    "com.craftinginterpreters.lox.Lox",
+    "test/batch/first.lox",
+    "test/batch",
+    "test/batch/missing.lox"
+  ], {
+    "test": "pass"
+  });
+  _javaSuites.add("jlox_batch");
+
   java("jlox", {
     "test": "pass",
     ...earlyChapters,